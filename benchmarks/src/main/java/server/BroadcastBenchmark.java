@@ -0,0 +1,148 @@
+package server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A room broadcasting msgs to its clients over real loopback sockets.
+ * Every client of the room is one end of a socket pair, the other ends are read and thrown away by a drain thread so
+ * the sockets never back up. Msgs are handed to the room's loop in batches like a busy room would see them, the score
+ * is the time per msg including the writes to every client.
+ * The room's msgs aren't written to the database, PersistenceBenchmark measures that on its own.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBenchmark {
+    //msgs handed to the room's loop at a time
+    static final int BATCH = 100;
+
+    @Param({"10", "100", "1000"})
+    private int clients;
+
+    @Param({"100"})
+    private int size;
+
+    private File db;
+    private HistoryWriter writer;
+    private EventLoop loop;
+    private ChatRoom room;
+    private Client sender;
+    private byte[] payload;
+
+    //the other ends of the clients' sockets
+    private List<SocketChannel> peers;
+    private Thread drain;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        db = File.createTempFile("broadcast", ".db");
+        String url = "jdbc:sqlite:" + db.getPath();
+        Connection connection = DriverManager.getConnection(url);
+        HistorySchema.migrate(connection);
+        writer = new HistoryWriter(url, Config.DB_QUEUE, Config.DB_BATCH, Config.DB_FLUSH_MILLIS) {
+            @Override
+            public boolean offer(String room, WebSocketMsg msg) {
+                return true;
+            }
+        };
+
+        loop = new EventLoop("room");
+        loop.start();
+        room = new ChatRoom(null, new SqliteHistoryStore(connection, writer), "bench", loop, Runnable::run, null);
+        room.open();
+
+        peers = new ArrayList<>();
+        try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress("127.0.0.1", 0));
+            for (int i = 0; i < clients; i++) {
+                SocketChannel peer = SocketChannel.open(listener.getLocalAddress());
+                Client client = new Client(listener.accept());
+                room.addClient(client);
+                peers.add(peer);
+                if (sender == null) {
+                    sender = client;
+                }
+            }
+        }
+        awaitLoop();
+
+        drain = new Thread(this::drain, "drain");
+        drain.start();
+
+        payload = new byte[size];
+        Arrays.fill(payload, (byte) 'a');
+        System.arraycopy("alice ".getBytes(), 0, payload, 0, 6);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void broadcast() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        loop.execute(() -> {
+            for (int i = 0; i < BATCH; i++) {
+                room.onMessage(sender, new WebSocketMsg(1, payload));
+            }
+            done.countDown();
+        });
+        done.await();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        drain.interrupt();
+        drain.join();
+        //the sockets go away with the forked VM, closing them here would empty the room and have it look for a server
+        db.delete();
+    }
+
+    /**
+     * waits until every task handed to the loop so far has run
+     */
+    private void awaitLoop() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        loop.execute(done::countDown);
+        done.await();
+    }
+
+    /**
+     * reads everything the room sends until interrupted
+     */
+    private void drain() {
+        try (Selector selector = Selector.open()) {
+            for (SocketChannel peer : peers) {
+                peer.configureBlocking(false);
+                peer.register(selector, SelectionKey.OP_READ);
+            }
+            ByteBuffer buf = ByteBuffer.allocateDirect(64 * 1024);
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select(100);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    buf.clear();
+                    ((SocketChannel) key.channel()).read(buf);
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
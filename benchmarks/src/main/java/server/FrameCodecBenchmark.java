@@ -0,0 +1,103 @@
+package server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding a masked client frame and encoding the broadcast frame, from tiny msgs to the largest ones clients send.
+ * The deflate variants do the same for clients that negotiated permessage-deflate, encodeBinary encodes the frame
+ * for clients of the binary subprotocol.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameCodecBenchmark {
+    @Param({"10", "125", "1024", "65536"})
+    private int size;
+
+    //a client's text frame as read from the socket
+    private ByteBuffer masked;
+    private FrameDecoder decoder;
+    //the same frame compressed
+    private ByteBuffer maskedDeflated;
+    private FrameDecoder inflater;
+
+    private String user;
+    private String text;
+
+    @Setup
+    public void setup() {
+        byte[] payload = new byte[size];
+        Arrays.fill(payload, (byte) 'a');
+        System.arraycopy("alice ".getBytes(), 0, payload, 0, Math.min(6, size));
+        masked = mask(WebSocketMsg.frame(1, payload), new byte[] {0x12, 0x34, 0x56, 0x78});
+        decoder = new FrameDecoder();
+        maskedDeflated = mask(WebSocketMsg.frame(1, ByteBuffer.wrap(PerMessageDeflate.deflate(payload, 0, size)), true),
+                new byte[] {0x12, 0x34, 0x56, 0x78});
+        inflater = new FrameDecoder();
+        inflater.setDeflate(true);
+
+        int start = Math.min(6, size);
+        user = "alice";
+        text = new String(payload, start, size - start);
+    }
+
+    @Benchmark
+    public WebSocketMsg decode() throws IOException {
+        return decoder.next(masked.duplicate());
+    }
+
+    @Benchmark
+    public ByteBuffer encode() {
+        WebSocketMsg msg = new WebSocketMsg(user, text);
+        msg.setId(42);
+        msg.setTimestamp(1500000000000L);
+        return msg.getFrame();
+    }
+
+    @Benchmark
+    public ByteBuffer encodeBinary() {
+        WebSocketMsg msg = new WebSocketMsg(user, text);
+        msg.setId(42);
+        msg.setTimestamp(1500000000000L);
+        return msg.getFrame(true, false);
+    }
+
+    @Benchmark
+    public WebSocketMsg decodeDeflated() throws IOException {
+        return inflater.next(maskedDeflated.duplicate());
+    }
+
+    @Benchmark
+    public ByteBuffer encodeDeflated() {
+        WebSocketMsg msg = new WebSocketMsg(user, text);
+        msg.setId(42);
+        msg.setTimestamp(1500000000000L);
+        return msg.getFrame(false, true);
+    }
+
+    /**
+     * turns a server frame into the masked frame a client would send
+     */
+    static ByteBuffer mask(ByteBuffer frame, byte[] key) {
+        frame = frame.duplicate();
+        int headerLength = (frame.get(1) & 0x7f) == 126 ? 4 : (frame.get(1) & 0x7f) == 127 ? 10 : 2;
+        ByteBuffer masked = ByteBuffer.allocate(frame.remaining() + 4);
+        for (int i = 0; i < headerLength; i++) {
+            masked.put(i == 1 ? (byte) (frame.get(i) | 0x80) : frame.get(i));
+        }
+        masked.put(key);
+        for (int i = headerLength; i < frame.limit(); i++) {
+            masked.put((byte) (frame.get(i) ^ key[(i - headerLength) & 3]));
+        }
+        masked.flip();
+        return masked;
+    }
+}
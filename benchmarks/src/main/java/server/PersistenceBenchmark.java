@@ -0,0 +1,85 @@
+package server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Msgs going into the history store the way ChatRoom.addToDB hands them over, measured until they can be read back:
+ * committed to a temp SQLite file or copied into a room's memory-mapped log in a temp directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PersistenceBenchmark {
+    //msgs added before waiting for them to be written
+    static final int BATCH = 1000;
+
+    @Param({"sqlite", "log"})
+    private String store;
+
+    @Param({"256"})
+    private int dbBatch;
+
+    private File db;
+    private HistoryStore history;
+    private long id;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        db = File.createTempFile("history", ".db");
+        if (store.equals("log")) {
+            db.delete();
+            history = new LogHistoryStore(db, Config.LOG_SEGMENT_BYTES, Config.LOG_RETENTION_BYTES,
+                    Config.LOG_RETENTION_MILLIS);
+            return;
+        }
+        String url = "jdbc:sqlite:" + db.getPath();
+        Connection connection = DriverManager.getConnection(url);
+        HistorySchema.migrate(connection);
+        HistoryWriter writer = new HistoryWriter(url, Config.DB_QUEUE, dbBatch, Config.DB_FLUSH_MILLIS);
+        writer.start();
+        history = new SqliteHistoryStore(connection, writer);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void insert() throws InterruptedException {
+        for (int i = 0; i < BATCH; i++) {
+            //the store may keep the msg until it's written, like the room does each one is new
+            WebSocketMsg msg = new WebSocketMsg("alice", "a msg about as long as the ones people send");
+            msg.setId(++id);
+            msg.setTimestamp(System.currentTimeMillis());
+            //the writer's queue holds more than a batch, nothing is turned down
+            history.append("bench", msg);
+        }
+        CountDownLatch synced = new CountDownLatch(1);
+        history.sync(synced::countDown);
+        synced.await();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        history.close();
+        delete(db);
+        new File(db.getPath() + "-wal").delete();
+        new File(db.getPath() + "-shm").delete();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
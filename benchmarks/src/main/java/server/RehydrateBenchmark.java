@@ -0,0 +1,104 @@
+package server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A room's recent history loaded the way ChatRoom.load does when the room opens again: the latest msgs read from the
+ * history store and put in a ring, which encodes those the store doesn't have frames for, or the hibernation file
+ * the room wrote when it closed read back, frames and all.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RehydrateBenchmark {
+    @Param({"sqlite", "log", "hibernate"})
+    private String source;
+
+    private File dir;
+    private HistoryStore store;
+    private HistoryRing written;
+    private HibernationFile hibernation;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dir = File.createTempFile("rehydrate", "");
+        dir.delete();
+        dir.mkdirs();
+        if (source.equals("sqlite")) {
+            String url = "jdbc:sqlite:" + new File(dir, "history.db").getPath();
+            Connection connection = DriverManager.getConnection(url);
+            HistorySchema.migrate(connection);
+            HistoryWriter writer = new HistoryWriter(url, Config.DB_QUEUE, Config.DB_BATCH, Config.DB_FLUSH_MILLIS);
+            writer.start();
+            store = new SqliteHistoryStore(connection, writer);
+        } else {
+            store = new LogHistoryStore(new File(dir, "log"), Config.LOG_SEGMENT_BYTES, Config.LOG_RETENTION_BYTES,
+                    Config.LOG_RETENTION_MILLIS);
+        }
+
+        written = new HistoryRing(Config.HISTORY_MSGS, Config.HISTORY_BYTES);
+        for (int id = 1; id <= Config.HISTORY_MSGS; id++) {
+            WebSocketMsg msg = new WebSocketMsg("alice", "a msg about as long as the ones people send " + id);
+            msg.setId(id);
+            msg.setTimestamp(System.currentTimeMillis());
+            store.append("bench", msg);
+            written.add(msg);
+        }
+        CountDownLatch synced = new CountDownLatch(1);
+        store.sync(synced::countDown);
+        synced.await();
+        hibernation = new HibernationFile(new File(dir, "bench.snap"));
+    }
+
+    /**
+     * the file is deleted when it's read, like the room does it's written again before each open
+     */
+    @Setup(Level.Invocation)
+    public void hibernate() throws Exception {
+        if (source.equals("hibernate")) {
+            hibernation.write(written, Config.HISTORY_MSGS + 1);
+        }
+    }
+
+    @Benchmark
+    public HistoryRing open() {
+        HistoryRing history = new HistoryRing(Config.HISTORY_MSGS, Config.HISTORY_BYTES);
+        List<WebSocketMsg> msgs;
+        if (source.equals("hibernate")) {
+            hibernation.read();
+            msgs = hibernation.getMsgs();
+        } else {
+            msgs = store.latest("bench", Config.HISTORY_MSGS);
+        }
+        for (WebSocketMsg msg : msgs) {
+            history.add(msg);
+        }
+        return history;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        store.close();
+        delete(dir);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,80 @@
+package server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing the requests a browser sends for the chat page, and answering a websocket handshake.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestParseBenchmark {
+    //what a current browser sends for a page asset and to open the chat's websocket
+    static final String PAGE = "GET /css/style.css HTTP/1.1\r\n"
+            + "Host: localhost:8080\r\n"
+            + "Connection: keep-alive\r\n"
+            + "sec-ch-ua: \"Chromium\";v=\"124\", \"Google Chrome\";v=\"124\", \"Not-A.Brand\";v=\"99\"\r\n"
+            + "sec-ch-ua-mobile: ?0\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) "
+            + "Chrome/124.0.0.0 Safari/537.36\r\n"
+            + "sec-ch-ua-platform: \"Linux\"\r\n"
+            + "Accept: text/css,*/*;q=0.1\r\n"
+            + "Sec-Fetch-Site: same-origin\r\n"
+            + "Sec-Fetch-Mode: no-cors\r\n"
+            + "Sec-Fetch-Dest: style\r\n"
+            + "Referer: http://localhost:8080/\r\n"
+            + "Accept-Encoding: gzip, deflate, br, zstd\r\n"
+            + "Accept-Language: en-US,en;q=0.9\r\n"
+            + "If-None-Match: \"18f2c1a7d40-a6e\"\r\n"
+            + "If-Modified-Since: Tue, 14 May 2024 10:12:03 GMT\r\n"
+            + "\r\n";
+    static final String HANDSHAKE = "GET /chat HTTP/1.1\r\n"
+            + "Host: localhost:8080\r\n"
+            + "Connection: Upgrade\r\n"
+            + "Pragma: no-cache\r\n"
+            + "Cache-Control: no-cache\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) "
+            + "Chrome/124.0.0.0 Safari/537.36\r\n"
+            + "Upgrade: websocket\r\n"
+            + "Origin: http://localhost:8080\r\n"
+            + "Sec-WebSocket-Version: 13\r\n"
+            + "Accept-Encoding: gzip, deflate, br, zstd\r\n"
+            + "Accept-Language: en-US,en;q=0.9\r\n"
+            + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+            + "Sec-WebSocket-Extensions: permessage-deflate; client_max_window_bits\r\n"
+            + "\r\n";
+
+    private byte[] page;
+    private byte[] handshake;
+
+    @Setup
+    public void setup() {
+        page = PAGE.getBytes(StandardCharsets.US_ASCII);
+        handshake = HANDSHAKE.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Benchmark
+    public Request parsePage() {
+        return new Request(page, page.length);
+    }
+
+    @Benchmark
+    public Request parseHandshake() {
+        return new Request(handshake, handshake.length);
+    }
+
+    @Benchmark
+    public ByteBuffer[] handshakeResponse() throws IOException, BadRequestException {
+        Response res = new Response(new Request(handshake, handshake.length), null, true);
+        res.build();
+        return res.getHead();
+    }
+}
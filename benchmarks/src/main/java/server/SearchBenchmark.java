@@ -0,0 +1,101 @@
+package server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A room's search index with a million msgs in it, searched the way ChatRoom.search does before reading the msgs.
+ * The msgs' words are drawn from a skewed vocabulary so some are in most msgs and others in a few. The index is
+ * searched either with every list still in memory or after it was merged into its memory-mapped file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+public class SearchBenchmark {
+    static final int WORDS = 10000;
+    static final int WORDS_PER_MSG = 8;
+
+    @Param({"1000000"})
+    private int msgs;
+
+    @Param({"false", "true"})
+    private boolean saved;
+
+    //a common word, two common words and a rare word with a common one
+    @Param({"w1", "w1 w20", "w9000 w1"})
+    private String query;
+
+    private File file;
+    private SearchIndex index;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        file = File.createTempFile("search", ".idx");
+        file.delete();
+        index = new SearchIndex(file, Long.MAX_VALUE);
+        index.open(new EmptyStore(), "bench", 1);
+
+        Random random = new Random(42);
+        StringBuilder text = new StringBuilder();
+        for (int id = 1; id <= msgs; id++) {
+            text.setLength(0);
+            for (int i = 0; i < WORDS_PER_MSG; i++) {
+                text.append('w').append(random.nextInt(random.nextInt(WORDS) + 1)).append(' ');
+            }
+            WebSocketMsg msg = new WebSocketMsg("alice", text.toString());
+            msg.setId(id);
+            msg.setTimestamp(id);
+            index.add(msg);
+        }
+        if (saved) {
+            index.save();
+        }
+    }
+
+    @Benchmark
+    public int[] search() {
+        return index.search(query, Config.SEARCH_RESULTS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        file.delete();
+    }
+
+    /**
+     * a store with nothing in it, the index is filled by the benchmark
+     */
+    static class EmptyStore implements HistoryStore {
+        @Override
+        public boolean append(String room, WebSocketMsg msg) {
+            return true;
+        }
+
+        @Override
+        public void sync(Runnable task) {
+            task.run();
+        }
+
+        @Override
+        public List<WebSocketMsg> latest(String room, int count) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public List<WebSocketMsg> before(String room, long before, int count) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
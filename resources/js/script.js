@@ -1,9 +1,19 @@
 window.onload = function () {
     let join = document.getElementById("submit");
     let mySocket, uName, rName, send;
+    //names of the room's members, kept up to date by the presence frames
+    let members = new Set();
+
+    function showMembers() {
+        let list = document.getElementById('members');
+        if(list) {
+            list.textContent = "In the room: " + Array.from(members).sort().join(", ");
+        }
+    }
 
     function setPage() {
         document.body.innerHTML = this.response;
+        showMembers();
         send = document.getElementById('send');
         let field = document.getElementById('msg');
 
@@ -34,13 +44,26 @@ window.onload = function () {
 
         mySocket.onopen = function() {
             console.log("here");
-            mySocket.send("join " + rName);
+            mySocket.send("join " + rName + " as " + uName.split(/\s+/)[0]);
         }
 
         mySocket.onmessage = function(event) {
             console.log(event);
             let temp = JSON.parse(event.data);
             console.log(temp)
+
+            //who is in the room when joining, then who came and went since
+            if(temp.members) {
+                members = new Set(temp.members);
+                showMembers();
+                return;
+            }
+            if(temp.joined || temp.left) {
+                temp.joined.forEach(name => members.add(name));
+                temp.left.forEach(name => members.delete(name));
+                showMembers();
+                return;
+            }
             let chat = document.getElementById('chatDisplay');
             let container = document.createElement('div');
             container.setAttribute('id', 'msgBox');
@@ -0,0 +1,135 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary msgs for native clients, negotiated with the chat.binary websocket subprotocol and sent as binary
+ * frames. A msg is its id and timestamp as 8 byte longs, the user as a 2 byte length and UTF-8 bytes and the body as
+ * a 4 byte length and UTF-8 bytes, all big endian. Clients send the same layout with id and timestamp left 0, the
+ * room assigns both. Commands like join and history stay text frames.
+ */
+public class BinaryCodec {
+    //subprotocol name clients offer in Sec-WebSocket-Protocol
+    public static final String PROTOCOL = "chat.binary";
+
+    //id, timestamp, user length and body length
+    static final int FIXED = 8 + 8 + 2 + 4;
+    //longest user in bytes, its length is 2 bytes
+    static final int MAX_USER = 0xFFFF;
+
+    //encode buffer and UTF-8 encoder reused by every msg encoded on a thread
+    private static final ThreadLocal<BinaryCodec> CODEC = ThreadLocal.withInitial(BinaryCodec::new);
+    //a buffer grown past this for one large msg isn't kept for the next
+    private static final int KEEP = 64 * 1024;
+
+    private ByteBuffer buf;
+    private CharsetEncoder utf8;
+
+    private BinaryCodec() {
+        buf = ByteBuffer.allocate(1024);
+        utf8 = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * @param header the Sec-WebSocket-Protocol header's value, may be null
+     * @return whether the client offered the binary subprotocol
+     */
+    public static boolean accepts(String header) {
+        if (header == null) {
+            return false;
+        }
+        for (String protocol : header.split(",")) {
+            if (protocol.trim().equals(PROTOCOL)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * encodes a msg into the thread's buffer
+     * @param id
+     * @param timestamp
+     * @param user
+     * @param body
+     * @return the encoded msg in read mode, valid until the next msg is encoded on this thread
+     */
+    public static ByteBuffer encode(long id, long timestamp, String user, String body) {
+        BinaryCodec codec = CODEC.get();
+        //UTF-8 takes at most 3 bytes per char
+        int max = FIXED + 3 * (user.length() + body.length());
+        if (codec.buf.capacity() < max || codec.buf.capacity() > Math.max(KEEP, max)) {
+            codec.buf = ByteBuffer.allocate(Math.max(max, 1024));
+        }
+        ByteBuffer out = codec.buf;
+        out.clear();
+        out.putLong(id).putLong(timestamp);
+
+        int userStart = out.position() + 2;
+        out.position(userStart);
+        //a longer user is cut at the last char that fits
+        out.limit(Math.min(out.capacity(), userStart + MAX_USER));
+        codec.utf8(user, out);
+        out.limit(out.capacity());
+        out.putShort(userStart - 2, (short) (out.position() - userStart));
+
+        int bodyStart = out.position() + 4;
+        out.position(bodyStart);
+        codec.utf8(body, out);
+        out.putInt(bodyStart - 4, out.position() - bodyStart);
+
+        out.flip();
+        return out;
+    }
+
+    private void utf8(String s, ByteBuffer out) {
+        utf8.reset();
+        utf8.encode(CharBuffer.wrap(s), out, true);
+        utf8.flush(out);
+    }
+
+    /**
+     * @param payload a client's binary msg
+     * @return whether the lengths in the msg add up to its size
+     */
+    public static boolean isValid(ChunkedBuffer payload) {
+        if (payload.size() < FIXED) {
+            return false;
+        }
+        int userLen = userLength(payload);
+        return FIXED + userLen <= payload.size()
+                && bodyLength(payload, userLen) == payload.size() - FIXED - userLen;
+    }
+
+    /**
+     * @param payload a valid binary msg
+     * @return the msg's user
+     */
+    public static String user(ChunkedBuffer payload) {
+        return payload.string(18, 18 + userLength(payload));
+    }
+
+    /**
+     * @param payload a valid binary msg
+     * @return the msg's body
+     */
+    public static String body(ChunkedBuffer payload) {
+        return payload.string(FIXED + userLength(payload), payload.size());
+    }
+
+    private static int userLength(ChunkedBuffer payload) {
+        return (payload.get(16) & 0xFF) << 8 | payload.get(17) & 0xFF;
+    }
+
+    private static int bodyLength(ChunkedBuffer payload, int userLen) {
+        int i = 18 + userLen;
+        return (payload.get(i) & 0xFF) << 24 | (payload.get(i + 1) & 0xFF) << 16 | (payload.get(i + 2) & 0xFF) << 8
+                | payload.get(i + 3) & 0xFF;
+    }
+}
@@ -0,0 +1,245 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Websocket client for virtual thread mode.
+ * Reads with blocking calls on the connection's own thread and hands every decoded msg to the room's dispatcher.
+ * Frames for the client are queued with the same limit and slow consumer policy as on the event loops, a second
+ * thread writes the queue out with blocking writes so the room never waits on the socket.
+ * The heartbeat runs on the server's heartbeat loop, blocking reads can't time out on their own.
+ * Waiting is done on a lock's condition rather than with wait(), which would pin an idle client's virtual thread to
+ * its carrier and let a few hundred clients take every carrier there is.
+ */
+public class BlockingClient extends Client {
+    private Server server;
+    //room the client joined, set by the room's dispatcher
+    private volatile ChatRoom joined;
+    private volatile boolean open;
+    //guards the outbound queue, the writer and a joining reader wait on its condition
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    public BlockingClient(SocketChannel channel, Server server, Executor executor) {
+        super(channel);
+        this.server = server;
+        open = true;
+        executor.execute(this::writeLoop);
+    }
+
+    /**
+     * Reads msgs until the connection closes. The first msg has to be the join msg, the client waits until the room
+     * took it in before reading on. A msg over a rate limit is checked here, before it's handed to the room, and
+     * delaying it means not reading on until it may go through.
+     * @param buf bytes already read behind the handshake, in read mode
+     */
+    public void readLoop(ByteBuffer buf) {
+        startHeartbeat(server.getHeartbeatLoop());
+        try {
+            while (true) {
+                WebSocketMsg msg;
+                while ((msg = getDecoder().next(buf)) != null) {
+                    if (msg.isPingOrPong()) {
+                        if (msg.isPing()) {
+                            queue(msg.getPong());
+                        }
+                        continue;
+                    }
+                    if (joined == null) {
+                        if (!join(msg)) {
+                            return;
+                        }
+                        continue;
+                    }
+
+                    long wait = ChatRoom.isLimited(msg) ? admit(msg) : 0;
+                    if (wait > 0) {
+                        Metrics.RATE_LIMITED.increment();
+                        if (Config.RATE_LIMIT_POLICY == RateLimitPolicy.DROP) {
+                            continue;
+                        }
+                        if (Config.RATE_LIMIT_POLICY == RateLimitPolicy.DISCONNECT) {
+                            close();
+                            return;
+                        }
+                        //this is the client's own thread, waiting here holds back only its msgs
+                        do {
+                            TimeUnit.NANOSECONDS.sleep(wait);
+                        } while ((wait = admit(msg)) > 0);
+                    }
+                    WebSocketMsg received = msg;
+                    ChatRoom room = joined;
+                    //the room's history store is backed up, the room takes no more msgs until it caught up
+                    room.awaitStore();
+                    room.execute(() -> room.onMessage(this, received));
+                    if (msg.isClosed()) {
+                        return;
+                    }
+                }
+
+                //the decoder took everything, partial frames are kept in its state
+                buf.clear();
+                if (getChannel().read(buf) < 0) {
+                    close();
+                    return;
+                }
+                buf.flip();
+                touch();
+            }
+        } catch (IOException | InterruptedException e) {
+            close();
+        }
+    }
+
+    /**
+     * asks the server for the room and waits for the room to add the client
+     * @param msg first msg of the client
+     * @return false if the msg wasn't a join msg and the connection was closed
+     */
+    private boolean join(WebSocketMsg msg) throws InterruptedException {
+        String room = parseJoin(msg);
+        if (room == null) {
+            disconnect();
+            return false;
+        }
+
+        server.checkIfRoomExists(room, this);
+        lock.lock();
+        try {
+            while (joined == null && open) {
+                changed.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return open;
+    }
+
+    /**
+     * called on the room's dispatcher once the room added the client
+     * @param room
+     * @param executor
+     */
+    @Override
+    public void enter(ChatRoom room, Executor executor) {
+        lock.lock();
+        try {
+            setRoom(room);
+            joined = room;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * writes queued frames until the connection closes, taking everything queued so far in one gathering write
+     */
+    private void writeLoop() {
+        ByteBuffer[] batch = new ByteBuffer[MAX_BATCH];
+        try {
+            while (true) {
+                int n = 0;
+                lock.lock();
+                try {
+                    ByteBuffer frame;
+                    while ((frame = takeQueued()) == null && open) {
+                        changed.await();
+                    }
+                    while (frame != null) {
+                        batch[n++] = frame;
+                        frame = n < batch.length ? takeQueued() : null;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                if (n == 0) {
+                    return;
+                }
+
+                while (batch[n - 1].hasRemaining()) {
+                    getChannel().write(batch, 0, n);
+                }
+                Arrays.fill(batch, 0, n, null);
+            }
+        } catch (IOException | InterruptedException e) {
+            close();
+        }
+    }
+
+    @Override
+    public boolean send(ByteBuffer frame) throws IOException {
+        lock.lock();
+        try {
+            return super.send(frame);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void queue(ByteBuffer frame) throws IOException {
+        lock.lock();
+        try {
+            super.queue(frame);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void queueAll(List<ByteBuffer> frames) throws IOException {
+        lock.lock();
+        try {
+            super.queueAll(frames);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * wakes the writer, which does the actual writing
+     */
+    @Override
+    public void flush() {
+        lock.lock();
+        try {
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * leaves the room on its dispatcher, the reading thread never touches the room's state itself
+     */
+    @Override
+    public void close() {
+        ChatRoom room = joined;
+        if (room != null) {
+            room.execute(() -> room.removeClient(this));
+        } else {
+            disconnect();
+        }
+    }
+
+    @Override
+    public void disconnect() {
+        lock.lock();
+        try {
+            open = false;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        super.disconnect();
+    }
+}
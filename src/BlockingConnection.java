@@ -0,0 +1,106 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executor;
+
+/**
+ * Handles a connection on its own (virtual) thread with plain blocking I/O.
+ * Used instead of the event loops when the server runs in virtual thread mode. Requests are answered the same way,
+ * one after the other while the connection is kept alive, and a read that waits longer than the idle timeout closes
+ * it. A websocket connection then stays on this thread as the client's read loop.
+ */
+public class BlockingConnection implements Runnable {
+    private Server server;
+    private SocketChannel channel;
+    //executor the client's writer runs on
+    private Executor executor;
+
+    public BlockingConnection(Server server, SocketChannel channel, Executor executor) {
+        this.server = server;
+        this.channel = channel;
+        this.executor = executor;
+    }
+
+    @Override
+    public void run() {
+        try {
+            //reads through the socket's stream so they time out, the channel itself can't
+            Socket socket = channel.socket();
+            socket.setSoTimeout((int) Config.HTTP_IDLE_MILLIS);
+            InputStream in = socket.getInputStream();
+
+            ByteBuffer header = ByteBuffer.allocate(1024);
+            for (int requests = 1; ; requests++) {
+                int end;
+                while ((end = HttpHandler.headerEnd(header)) < 0) {
+                    if (!header.hasRemaining()) {
+                        if (header.capacity() >= HttpHandler.MAX_HEADER) {
+                            break;
+                        }
+                        header = HttpHandler.grow(header);
+                    }
+                    int n = in.read(header.array(), header.position(), header.remaining());
+                    if (n < 0) {
+                        channel.close();
+                        return;
+                    }
+                    header.position(header.position() + n);
+                }
+
+                Request req = new Request(header.array(), end);
+
+                Response res = new Response(req, server.getFileCache(), requests < Config.HTTP_MAX_REQUESTS);
+                try {
+                    res.build();
+                } catch (BadRequestException e) {
+                    //bad request response has been built
+                }
+                ByteBuffer[] head = res.getHead();
+                while (head[head.length - 1].hasRemaining()) {
+                    channel.write(head);
+                }
+                if (res.getBody() != null) {
+                    //files too large for the cache go straight from disk to the socket
+                    try (FileChannel body = FileChannel.open(res.getBody().toPath(), StandardOpenOption.READ)) {
+                        long pos = 0, size = body.size();
+                        while (pos < size) {
+                            pos += body.transferTo(pos, size - pos, channel);
+                        }
+                    }
+                }
+
+                //drop the request, whatever follows belongs to the next one
+                header.flip();
+                header.position(Math.max(end, 0));
+                header.compact();
+
+                if (req.isWebSocket()) {
+                    //whatever followed the handshake belongs to the client
+                    socket.setSoTimeout(0);
+                    header.flip();
+                    BlockingClient client = new BlockingClient(channel, server, executor);
+                    client.setDeflate(res.isDeflate());
+                    client.setBinary(res.isBinary());
+                    client.readLoop(header);
+                    return;
+                }
+                if (!res.isKeepAlive()) {
+                    channel.close();
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            //includes a connection that sat idle too long
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -1,212 +1,841 @@
 package server;
+import java.io.File;
 import java.io.IOException;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.channels.SocketChannel;
-import java.sql.*;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
 
 public class ChatRoom {
-    //list of the room's message history
-    private LinkedList<byte[]> msgHistory;
-    //list of clients waiting to be registered
-    private LinkedList<SocketChannel> clientQueue;
+    /**
+     * Lifecycle of a room. A room is OPENING until its history is loaded, ACTIVE while it has clients and DRAINING
+     * once the last one left. A client joining a draining room makes it active again, otherwise it is CLOSED after
+     * the idle time and a client that still finds it has to ask the server again.
+     */
+    public enum State {
+        OPENING, ACTIVE, DRAINING, CLOSED
+    }
+
+    //the room's most recent msgs, older ones are fetched from the history store on request
+    private HistoryRing msgHistory;
     //set of all the clients that are connected to the room
-    private HashSet<SocketChannel> clients;
-    //selector for the room
-    private Selector selector;
-    //a connection to the data base
-    private Connection connection;
+    private HashSet<Client> clients;
+    //clients that asked to join before the history was loaded
+    private List<Client> joining;
+    //runs every task touching the room's state, one at a time. An event loop or a dispatcher in virtual thread mode
+    private Executor executor;
+    //server hosting the room
+    private Server server;
+    //keeps every msg of the room
+    private HistoryStore store;
+    //reads older msgs from the store, shared with other rooms, so reading them never holds up the room's executor
+    private Executor reader;
     //current room's name
     private String roomName;
 
-    private boolean hasClosed;
+    //only read and changed on the room's executor
+    private State state;
+    //when the room became empty
+    private long emptySince;
+
+    //id the next msg of the room gets, ids count up by one so a client knows which msgs it missed
+    private long nextId;
+
+    //msgs the history store turned down, appended in order once it takes msgs again. The clients aren't read
+    //meanwhile, readers on their own threads wait on the latch, which is only set while msgs are waiting
+    private ArrayDeque<WebSocketMsg> unstored;
+    private volatile CountDownLatch storeBacklog;
+
+    //msgs that may come in after a format's snapshot before joiners get a new one
+    private static final int SNAPSHOT_TAIL = 32;
+    //the recent history's frames concatenated, per format, built when a client joins
+    private ReplaySnapshot[] snapshots;
+
+    //full-text index of the room's msgs, only touched on the searcher
+    private SearchIndex search;
+    //runs the index's tasks on a thread shared with other rooms, so searching never holds up the room's executor.
+    //null when search is turned off
+    private Executor searcher;
+
+    //connections of each name clients joined as, and the names the room's members were last told about
+    private HashMap<String, Integer> members;
+    private HashSet<String> announced;
+    //names that joined or left since, they're announced together once the presence window is over
+    private HashSet<String> changed;
+    private boolean presenceScheduled;
+
+    //the room's rate limit, null if rooms aren't limited
+    private TokenBucket limit;
+
+    //gauges reported on /metrics
+    private Metrics.Room stats;
 
     /**
      * ChatRoom constructor
-     * Creates a new room or if it's reopening a new room, try to get all messages from a previous session
-     * from the database.
+     * The room lives on the given executor, every method that touches its state runs there.
+     * Nothing is loaded until open is called. Reads of msgs older than the recent history are made on the reader.
+     * The searcher has to run the tasks it is given one at a time and always on the same thread for the same room
+     * name, a room opening again then only reads the index once the closed room saved it.
      */
-    public ChatRoom(Connection connection, String roomName) {
+    public ChatRoom(Server server, HistoryStore store, String roomName, Executor executor, Executor reader,
+                    Executor searcher) {
         clients = new HashSet<>();
-        msgHistory = new LinkedList<>();
-        clientQueue = new LinkedList<>();
-        this.connection = connection;
+        joining = new ArrayList<>();
+        unstored = new ArrayDeque<>();
+        members = new HashMap<>();
+        announced = new HashSet<>();
+        changed = new HashSet<>();
+        msgHistory = new HistoryRing(Config.HISTORY_MSGS, Config.HISTORY_BYTES);
+        snapshots = new ReplaySnapshot[WebSocketMsg.FORMATS];
+        this.server = server;
+        this.store = store;
         this.roomName = roomName;
-        hasClosed = false;
+        this.executor = executor;
+        this.reader = reader;
+        this.searcher = searcher;
+        if(searcher != null) {
+            search = new SearchIndex(new File(Config.SEARCH_DIR, LogHistoryStore.fileName(roomName) + ".idx"),
+                    Config.SEARCH_MERGE_IDS);
+        }
+        limit = RateLimits.room();
+        state = State.OPENING;
+        stats = Metrics.openRoom(roomName);
+    }
+
+    /**
+     * Loads the room's history on its executor once msgs of a previous session of the room that may still be on their
+     * way to the store got there. Nothing waits for them meanwhile, clients that join are let in after the load.
+     * The searcher isn't waited for either, only the index's catch-up is queued there, after a closed room of the same
+     * name saved its index.
+     */
+    public void open() {
+        store.sync(() -> executor.execute(this::load));
+    }
+
+    /**
+     * Creates a new room or if it's reopening a new room, try to get all messages from a previous session
+     * from the history store.
+     */
+    private void load() {
+        //a room that hibernated has its recent history in a file, frames and all, and the store isn't asked. The file
+        //goes whenever a room of the name opens, hibernating or not, so one that's there is newer than the store
+        HibernationFile hibernation = hibernationFile();
+        if(Config.HIBERNATE && hibernation.read()) {
+            for(WebSocketMsg msg : hibernation.getMsgs()) {
+                msgHistory.add(msg);
+            }
+            nextId = hibernation.getNextId();
+        } else {
+            hibernation.delete();
+            List<WebSocketMsg> latest = store.latest(roomName, Config.HISTORY_MSGS);
+            for(WebSocketMsg msg : latest) {
+                msgHistory.add(msg);
+            }
+            nextId = latest.isEmpty() ? 1 : latest.get(latest.size() - 1).getId() + 1;
+        }
+        if(searcher != null) {
+            //the index catches up on msgs it missed while the room is already taking new ones
+            long indexUntil = nextId;
+            searcher.execute(() -> search.open(store, roomName, indexUntil));
+        }
+        updateHistoryStats();
+        state = State.ACTIVE;
+        for(Client client : joining) {
+            enterRoom(client);
+        }
+        joining = null;
+    }
+
+    /**
+     * adds a client to the current room
+     * The client is moved to the room's executor, after which the room handles everything it sends.
+     * If the room closed before the client got to it the client goes back to the server to find or open the room.
+     * @param client
+     */
+    public void addClient(Client client) {
+        executor.execute(() -> {
+            if(state == State.CLOSED) {
+                server.checkIfRoomExists(roomName, client);
+                return;
+            }
+            if(state == State.OPENING) {
+                joining.add(client);
+                return;
+            }
+            enterRoom(client);
+        });
+    }
 
+    /**
+     * lets a client in once the room is loaded, runs on the room's executor. A client resuming from before the recent
+     * history waits outside the room while the msgs it missed are read from the history store
+     * @param client
+     */
+    private void enterRoom(Client client) {
+        long since = client.getSince();
+        long oldest = oldestId();
+        if(since >= 0 && since + 1 < oldest) {
+            loadBefore(oldest, (int) Math.min(oldest - since - 1, Config.HISTORY_MSGS),
+                    older -> enterRoom(client, older, oldest));
+            return;
+        }
+        enterRoom(client, Collections.emptyList(), oldest);
+    }
+
+    /**
+     * lets a client in along with the msgs older than the recent history it missed
+     * @param client
+     * @param older msgs read from the history store, oldest first
+     * @param readUntil id the msgs were read up to, where the recent history started when they were asked for
+     */
+    private void enterRoom(Client client, List<WebSocketMsg> older, long readUntil) {
+        //the room closed while the client waited for the store, the client asks the server again
+        if(state == State.CLOSED) {
+            server.checkIfRoomExists(roomName, client);
+            return;
+        }
+        //msgs left the recent history meanwhile, the read starts over so there is no gap
+        if(readUntil < oldestId()) {
+            enterRoom(client);
+            return;
+        }
         try {
-            Statement stmt = this.connection.createStatement();
-            ResultSet res = stmt.executeQuery("SELECT * FROM chatHistory");
-            while(res.next()) {
-                if(res.getString("room").equals(roomName)) {
-                    msgHistory.offer(new WebSocketMsg(res.getString("user"), res.getString("msg")).getEncoded());
-                }
+            //registers the channel along with its decoder state
+            client.enter(this, executor);
+            clients.add(client);
+            state = State.ACTIVE;
+            stats.clients = clients.size();
+            if(client.getName() != null) {
+                members.merge(client.getName(), 1, Integer::sum);
+                presenceChanged(client.getName());
+            }
+            if(!unstored.isEmpty()) {
+                client.stall(true);
+            }
+
+            //updates the new user with all the msgs of the room so far
+            sendAll(client, older);
+
+            //frames the client sent right after joining
+            ByteBuffer leftover = client.takeLeftover();
+            if(leftover != null) {
+                process(client, leftover);
+            }
+        } catch (IOException e) {
+            if(clients.contains(client)) {
+                removeClient(client);
+            } else {
+                //the client never got in, a room it would have been the first in is still empty
+                client.disconnect();
+                drainIfEmpty();
             }
-            selector = Selector.open();
-        }catch(SQLException | IOException e) {
-            e.printStackTrace();
         }
     }
 
     /**
-     * Listens to all the clients in the room for incoming messages and updates all clients with new messages.
-     * A socketchannel is used here b/c once we start listening for websocket messages the thread becomes blocked.
-     * A selector is used to keep track of multiple socket channels which will return a collection of all channels
-     * that have data that is ready.
-     *
-     * Each channel is registered with the selector using the READ key. Channels must be in non-blocking mode.
-     * Once it has valid data we remove the channel from the selector and set the channel to blocking mode.
-     * This enables use to the get relevant data from that channel before setting it back to non-blocking mode to
-     * re-register with the selector.
-     *
-     * Will only add new clients to the room after the selector finishes with the current round of valid channels.
-     * @throws IOException
-     */
-    public void listen() throws IOException{
-        while(true) {
-            System.out.println("Listening");
-
-            //prepare selector
-            selector.select();
-            Set<SelectionKey> selections = selector.selectedKeys();
-            Iterator<SelectionKey> iter = selections.iterator();
-            //go through selector
-            while(iter.hasNext()) {
-                SelectionKey key = iter.next();
-
-                //if key is readable
-                if(key.isReadable()) {
-                    //remove from selector
-                    iter.remove();
-                    SocketChannel channel = (SocketChannel) key.channel();
-                    key.cancel();
-                    //set channel to blocking
-                    channel.configureBlocking(true);
-
-                    //get msg sent
-                    WebSocketMsg msg = new WebSocketMsg(channel.socket().getInputStream());
-
-                    if(!msg.isClosed()) {
-                        //add msg to room history
-                        msgHistory.offer(msg.getEncoded());
-
-                        //add msg to server chat history;
-                        addToDB(msg);
-                        //set to non-blocking to re-register
-                        channel.configureBlocking(false);
-                        selector.selectNow();
-                        channel.register(selector, SelectionKey.OP_READ);
-
-                        //updates all clients in the room with the new message
-                        update(msg);
-                    }else {
-                        //if the websocket connection is closed then remove
-                        //and close the connection from the room
-                        clients.remove(channel);
-                        channel.socket().close();
-                        if(clients.isEmpty()) {
-                            hasClosed = true;
-                            System.out.println("Closing room");
+     * decodes every complete frame in the buffer, adding each message to the history and sending it to the room.
+     * Partial frames stay in the client's decoder until the rest arrives.
+     * Each msg is checked against the rate limits as soon as it's decoded, a msg over a limit never gets to the store
+     * or the other clients. Depending on the policy it's dropped, the client is disconnected or the msg and everything
+     * after it wait, the client isn't read meanwhile.
+     * Called on the room's loop whenever one of its clients was read.
+     * @param client
+     * @param buf
+     */
+    void process(Client client, ByteBuffer buf) throws IOException {
+        WebSocketMsg msg;
+        try {
+            while((msg = client.getDecoder().next(buf)) != null && clients.contains(client)) {
+                long wait = isLimited(msg) ? client.admit(msg) : 0;
+                if(wait > 0) {
+                    Metrics.RATE_LIMITED.increment();
+                    switch(Config.RATE_LIMIT_POLICY) {
+                        case DROP:
+                            continue;
+                        case DISCONNECT:
+                            removeClient(client);
+                            return;
+                        case DELAY:
+                            client.hold(msg, buf, wait);
                             return;
-                        }
                     }
                 }
+                onMessage(client, msg);
             }
+        } catch (ProtocolException e) {
+            removeClient(client);
+        }
+    }
 
-            //add all clients waiting to join the room if any
-            SocketChannel toBeAdded;
-            while (!clientQueue.isEmpty()) {
-                toBeAdded = clientQueue.pollFirst();
-                toBeAdded.configureBlocking(true);
+    /**
+     * Handles a msg the rate limit held back once its wait is over, then the bytes read after it.
+     * The client is read again when none of them had to wait again.
+     * @param client
+     */
+    void resume(Client client) {
+        WebSocketMsg msg = client.takeHeld();
+        ByteBuffer rest = client.takeLeftover();
+        if(msg == null || !clients.contains(client)) {
+            return;
+        }
+        try {
+            long wait = client.admit(msg);
+            if(wait > 0) {
+                client.hold(msg, rest, wait);
+                return;
+            }
+            onMessage(client, msg);
+            if(rest != null && clients.contains(client)) {
+                process(client, rest);
+            }
+            if(!client.isHeld() && clients.contains(client)) {
+                client.unpause();
+            }
+        } catch (IOException e) {
+            removeClient(client);
+        }
+    }
 
-                //updates the new user with all the msgs of the room so far
-                sendAll(toBeAdded);
-                System.out.println(toBeAdded);
-                toBeAdded.configureBlocking(false);
+    /**
+     * @param msg
+     * @return whether the msg counts against the rate limits, heartbeats and closing the connection don't
+     */
+    static boolean isLimited(WebSocketMsg msg) {
+        return !msg.isClosed() && !msg.isPingOrPong();
+    }
+
+    /**
+     * @param msg
+     * @return whether the msg is a command for the room rather than something said in it. Commands start with a slash,
+     * user names don't, a msg from a name with one is never said in the room
+     */
+    static boolean isCommand(WebSocketMsg msg) {
+        return msg.getUserName().startsWith("/");
+    }
 
-                //registers the channel
-                toBeAdded.register(selector, SelectionKey.OP_READ);
-                clients.add(toBeAdded);
+    /**
+     * @return the room's rate limit, null if rooms aren't limited
+     */
+    TokenBucket getRateLimit() {
+        return limit;
+    }
+
+    /**
+     * handles one msg from a client, runs on the room's executor
+     * @param client
+     * @param msg
+     */
+    void onMessage(Client client, WebSocketMsg msg) {
+        if(msg.isClosed()) {
+            //if the websocket connection is closed then remove
+            //and close the connection from the room
+            removeClient(client);
+            return;
+        }
+
+        //pings and pongs aren't chat msgs, a ping is answered right away
+        if(msg.isPingOrPong()) {
+            if(msg.isPing()) {
+                try {
+                    client.queue(msg.getPong());
+                } catch (IOException e) {
+                    removeClient(client);
+                }
             }
+            return;
+        }
+
+        if(isCommand(msg)) {
+            command(client, msg);
+            return;
+        }
+
+        msg.setId(nextId++);
+        msg.setTimestamp(System.currentTimeMillis());
+
+        //add msg to server chat history
+        addToDB(msg);
+
+        //add msg to room history
+        msgHistory.add(msg);
+        updateHistoryStats();
+
+        //adding the msg to the index happens on the searcher, the JSON frame is already encoded for it to keep
+        if(searcher != null) {
+            searcher.execute(() -> search.add(msg));
+        }
+
+        //updates all clients in the room with the new message
+        update(msg);
+    }
+
+    /**
+     * Handles a command, an unknown one is ignored.
+     * @param client
+     * @param msg
+     */
+    private void command(Client client, WebSocketMsg msg) {
+        switch(msg.getUserName()) {
+            //a client asking for msgs older than the ones it has
+            case "/history":
+                if(msg.getMsg().startsWith("before ")) {
+                    sendBefore(client, msg.getMsg());
+                }
+                break;
+            //a client searching the room's msgs
+            case "/search":
+                search(client, msg.getMsg());
+                break;
         }
     }
 
     /**
-     * adds a socket channel to the current room
-     * need to be synchronized so that we don't concurrently modify the client queue
-     * when two users attemp to join the room at the same time.
-     * @param sc
+     * runs a task on the room's executor
+     * @param task
      */
-    public synchronized void addSocketChannel(SocketChannel sc) {
-        clientQueue.offer(sc);
-        selector.wakeup();
+    public void execute(Runnable task) {
+        executor.execute(task);
     }
 
     /**
-     * Updates all clients connected to the room with the new message
-     * @param msg
+     * removes a client from the room and closes its connection, the room starts draining once it is empty
+     * @param client
+     */
+    void removeClient(Client client) {
+        if(!clients.remove(client)) {
+            return;
+        }
+        client.disconnect();
+        stats.clients = clients.size();
+        if(client.getName() != null) {
+            members.computeIfPresent(client.getName(), (name, n) -> n == 1 ? null : n - 1);
+            presenceChanged(client.getName());
+        }
+
+        drainIfEmpty();
+    }
+
+    /**
+     * starts draining an active room that has no clients left, an empty room is kept for a while in case someone
+     * comes back, then it's removed from the server
+     */
+    private void drainIfEmpty() {
+        if(state != State.ACTIVE || !clients.isEmpty()) {
+            return;
+        }
+        state = State.DRAINING;
+        emptySince = System.currentTimeMillis();
+        if(Config.ROOM_IDLE_MILLIS <= 0) {
+            reap();
+        } else {
+            server.schedule(() -> executor.execute(this::reap), Config.ROOM_IDLE_MILLIS);
+        }
+    }
+
+    /**
+     * closes the room if it has stayed empty for the whole idle time and every msg got to the store
      */
-    private synchronized void update(WebSocketMsg msg) {
+    private void reap() {
+        if(state != State.DRAINING || System.currentTimeMillis() - emptySince < Config.ROOM_IDLE_MILLIS
+                || !unstored.isEmpty()) {
+            return;
+        }
+        state = State.CLOSED;
+        Arrays.fill(snapshots, null);
+        Metrics.closeRoom(stats);
+        hibernate();
+        if(searcher != null) {
+            //searches still queued read the store, it's let go of once they're done. A room that opened again under
+            //the name meanwhile just opens what it needs again
+            searcher.execute(() -> {
+                search.save();
+                store.release(roomName);
+            });
+        } else {
+            //before the room leaves the server, a room opening again under the name finds the store let go of it
+            store.release(roomName);
+        }
+        server.removeRoom(roomName, this);
+    }
+
+    /**
+     * Writes the recent history to the room's hibernation file, the room opening again reads it from there.
+     * Done before the room leaves the server, so the file is there by the time a new room of the name loads.
+     * A room without msgs leaves no file, anyone can open one by joining it.
+     */
+    private void hibernate() {
+        if(!Config.HIBERNATE) {
+            return;
+        }
+        HibernationFile hibernation = hibernationFile();
+        if(msgHistory.size() == 0) {
+            hibernation.delete();
+            return;
+        }
         try {
-            selector.selectNow();
-            for (SocketChannel sc : clients) {
-                SelectionKey key = sc.keyFor(selector);
-                key.cancel();
-                sc.configureBlocking(true);
+            hibernation.write(msgHistory, nextId);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-                sc.socket().getOutputStream().write(msg.getEncoded());
-                sc.socket().getOutputStream().flush();
+    /**
+     * @return the file the room hibernates to
+     */
+    private HibernationFile hibernationFile() {
+        return new HibernationFile(new File(Config.HIBERNATE_DIR, LogHistoryStore.fileName(roomName) + ".snap"));
+    }
 
-                sc.configureBlocking(false);
-                selector.selectNow();
-                sc.register(selector, SelectionKey.OP_READ);
+    /**
+     * Updates all clients connected to the room with the new message.
+     * The frame is only queued on each client, clients that can't take it right away get it written once their
+     * socket is writable again, so one slow reader doesn't hold up the rest of the room.
+     * The msg is encoded once per format, every client gets a view of the same frame as the other clients that
+     * negotiated the same subprotocol and compression.
+     * @param msg
+     */
+    private void update(WebSocketMsg msg) {
+        long start = System.nanoTime();
+        List<Client> slow = null;
+        int deepest = 0;
+        int queued = 0;
+        for (Client client : clients) {
+            boolean keep;
+            try {
+                keep = client.send(client.frameOf(msg));
+                deepest = Math.max(deepest, client.queued());
+                queued += client.queued();
+            } catch (IOException e) {
+                keep = false;
+            }
+            if (!keep) {
+                if (slow == null) {
+                    slow = new ArrayList<>();
+                }
+                slow.add(client);
+            }
+        }
+
+        //clients that fell too far behind or whose connection broke
+        if (slow != null) {
+            for (Client client : slow) {
+                removeClient(client);
             }
-        }catch(IOException e) {
-            e.printStackTrace();
         }
+
+        Metrics.BROADCAST.observe(System.nanoTime() - start);
+        Metrics.OUTBOUND_DEPTH.observe(deepest);
+        stats.outboundQueued = queued;
     }
 
     /**
-     * sends a user all the messages so far
-     * Synchronized b/c we don't want to be reading and writing from the same user at the same time
-     * @param sc
+     * Notes that a name joined or left, the room's members are told once the presence window is over.
+     * Everything that happens within the window goes out in one frame, and a name that leaves and comes back within
+     * it isn't announced at all, so a wave of reconnects costs each member a frame or two instead of a frame per
+     * client.
+     * @param name
      */
-    private synchronized void sendAll(SocketChannel sc) {
-        for(byte[] msg: msgHistory) {
+    private void presenceChanged(String name) {
+        changed.add(name);
+        if(!presenceScheduled) {
+            presenceScheduled = true;
+            server.schedule(() -> executor.execute(this::announcePresence), Config.PRESENCE_MILLIS);
+        }
+    }
+
+    /**
+     * Sends the clients that joined with a name who joined and left in the window that just ended, compared to what
+     * they were told last. Names whose presence didn't change in the end aren't mentioned.
+     */
+    private void announcePresence() {
+        presenceScheduled = false;
+        List<String> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+        for(String name : changed) {
+            boolean present = members.containsKey(name);
+            if(present && announced.add(name)) {
+                joined.add(name);
+            } else if(!present && announced.remove(name)) {
+                left.add(name);
+            }
+        }
+        changed.clear();
+        if(joined.isEmpty() && left.isEmpty()) {
+            return;
+        }
+
+        ByteBuffer frame = WebSocketMsg.presenceFrame(joined, left);
+        Metrics.PRESENCE_FRAMES.increment();
+        List<Client> slow = null;
+        for(Client client : clients) {
+            if(client.getName() == null) {
+                continue;
+            }
+            boolean keep;
             try {
-                sc.socket().getOutputStream().write(msg);
-                sc.socket().getOutputStream().flush();
+                keep = client.send(frame.duplicate());
             } catch (IOException e) {
-                e.printStackTrace();
+                keep = false;
+            }
+            if(!keep) {
+                if(slow == null) {
+                    slow = new ArrayList<>();
+                }
+                slow.add(client);
+            }
+        }
+        if(slow != null) {
+            for(Client client : slow) {
+                removeClient(client);
+            }
+        }
+    }
+
+    /**
+     * publishes the size of the recent history
+     */
+    private void updateHistoryStats() {
+        stats.historyMsgs = msgHistory.size();
+        stats.historyBytes = msgHistory.bytes();
+    }
+
+    /**
+     * Sends a joining client the msgs it doesn't have, all of the recent history or for a client resuming with
+     * "since" the msgs after the id it gave. A resuming client that missed msgs older than the recent history gets
+     * the ones read from the store for it first, see enterRoom.
+     * The recent history goes out as a view of the snapshot for the client's format followed by the msgs that came in
+     * after the snapshot, all queued at once so they are written with one gathering write.
+     * A client that joined with a name gets the room's members before the msgs.
+     * @param client
+     * @param older msgs from before the recent history, oldest first
+     */
+    private void sendAll(Client client, List<WebSocketMsg> older) {
+        List<ByteBuffer> frames = new ArrayList<>();
+        if(client.getName() != null) {
+            frames.add(WebSocketMsg.membersFrame(members.keySet()));
+        }
+        for(WebSocketMsg msg : older) {
+            frames.add(client.frameOf(msg));
+        }
+        long since = client.getSince();
+        long oldest = oldestId();
+
+        int start = msgHistory.indexOf(Math.max(since + 1, oldest));
+        if(start < msgHistory.size()) {
+            ReplaySnapshot snapshot = snapshotFor(client);
+            ByteBuffer recent = snapshot.from(msgHistory.idAt(start));
+            if(recent != null) {
+                frames.add(recent);
+            }
+            for(int i = Math.max(start, msgHistory.indexOf(snapshot.lastId() + 1)); i < msgHistory.size(); i++) {
+                frames.add(client.frameOf(msgHistory.get(i)));
+            }
+        }
+
+        try {
+            client.queueAll(frames);
+        } catch (IOException e) {
+            removeClient(client);
+        }
+    }
+
+    /**
+     * @return id of the oldest msg in the recent history, the next msg's id if there is none
+     */
+    private long oldestId() {
+        return msgHistory.size() > 0 ? msgHistory.idAt(0) : nextId;
+    }
+
+    /**
+     * @param client
+     * @return the snapshot in the client's format, a new one if the last one fell too far behind
+     */
+    private ReplaySnapshot snapshotFor(Client client) {
+        int format = client.format();
+        ReplaySnapshot snapshot = snapshots[format];
+        if(snapshot == null || nextId - 1 - snapshot.lastId() > SNAPSHOT_TAIL) {
+            snapshot = ReplaySnapshot.build(msgHistory, client.isBinary(), client.isDeflate());
+            snapshots[format] = snapshot;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Answers "/history before &lt;id&gt; [count]": sends the client up to count msgs older than the given id,
+     * oldest first. Msgs still in the recent history are sent from memory, older ones are read from the history store
+     * on the reader and the page is sent once they're back.
+     * @param client
+     * @param command the msg text after "/history"
+     */
+    private void sendBefore(Client client, String command) {
+        String[] args = command.split("\\s+");
+        long before;
+        int count = Config.HISTORY_PAGE;
+        try {
+            before = Long.parseLong(args[1]);
+            if(args.length > 2) {
+                count = Math.min(Integer.parseInt(args[2]), Config.HISTORY_PAGE);
             }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return;
+        }
+        if(count <= 0) {
+            return;
+        }
+
+        int end = msgHistory.indexOf(before);
+        int start = Math.max(0, end - count);
+        //taken now, the msgs may leave the recent history before the store answers
+        List<WebSocketMsg> recent = new ArrayList<>(end - start);
+        for(int i = start; i < end; i++) {
+            recent.add(msgHistory.get(i));
+        }
+
+        //not enough in memory, the rest comes from the history store
+        if(end - start < count && start == 0) {
+            long oldest = end > 0 ? msgHistory.idAt(0) : before;
+            loadBefore(oldest, count - (end - start), older -> sendPage(client, older, recent));
+            return;
+        }
+        sendPage(client, Collections.emptyList(), recent);
+    }
+
+    /**
+     * sends a client a page of older msgs, unless it left while they were read
+     * @param client
+     * @param older msgs read from the history store, oldest first
+     * @param recent msgs from the recent history that follow them
+     */
+    private void sendPage(Client client, List<WebSocketMsg> older, List<WebSocketMsg> recent) {
+        if(!clients.contains(client)) {
+            return;
+        }
+        List<ByteBuffer> frames = new ArrayList<>(older.size() + recent.size());
+        for(WebSocketMsg msg : older) {
+            frames.add(client.frameOf(msg));
+        }
+        for(WebSocketMsg msg : recent) {
+            frames.add(client.frameOf(msg));
+        }
+        try {
+            client.queueAll(frames);
+        } catch (IOException e) {
+            removeClient(client);
         }
     }
 
     /**
-     * adds the msg to the chat history database
-     * Synchronized b/c we don't want multiple rooms trying to add to the same database at the same time
+     * Answers "/search &lt;words&gt;": finds the newest msgs having every word and sends them to the client in one
+     * JSON text frame, see WebSocketMsg.searchFrame. The index is searched and the msgs read on the searcher, the room's
+     * executor only queues the finished frame.
+     * @param client
+     * @param query the msg text after "/search"
+     */
+    private void search(Client client, String query) {
+        if(searcher == null) {
+            return;
+        }
+        searcher.execute(() -> {
+            long start = System.nanoTime();
+            List<WebSocketMsg> results = search.fetch(search.search(query, Config.SEARCH_RESULTS), store, roomName);
+            ByteBuffer frame = WebSocketMsg.searchFrame(query, results);
+            Metrics.SEARCH.observe(System.nanoTime() - start);
+
+            executor.execute(() -> {
+                if(!clients.contains(client)) {
+                    return;
+                }
+                try {
+                    client.queue(frame);
+                } catch (IOException e) {
+                    removeClient(client);
+                }
+            });
+        });
+    }
+
+    /**
+     * Reads msgs of this room older than the given id from the history store on the reader, so a store that reads from
+     * disk never blocks the room's executor. The read waits for the msgs appended so far to get to the store, the ones
+     * that just left the recent history may still be on their way. The msgs are handed back on the executor.
+     * @param before
+     * @param count most msgs to read
+     * @param then takes the msgs, oldest first, run on the room's executor
+     */
+    private void loadBefore(long before, int count, Consumer<List<WebSocketMsg>> then) {
+        store.sync(() -> reader.execute(() -> {
+            List<WebSocketMsg> msgs = store.before(roomName, before, count);
+            executor.execute(() -> then.accept(msgs));
+        }));
+    }
+
+    /**
+     * Adds the msg to the room's history store. A msg the store turns down is kept, along with every msg after it, and
+     * the room stops reading its clients until the store took them all, see storeUnstored.
      * @param msg
      */
-    private synchronized void addToDB(WebSocketMsg msg) {
-        try{
-            PreparedStatement pstmt = connection.prepareStatement("INSERT INTO chatHistory(room, user, msg) VALUES(?, ?, ?)");
+    private void addToDB(WebSocketMsg msg) {
+        if(unstored.isEmpty() && store.append(roomName, msg)) {
+            return;
+        }
+        unstored.add(msg);
+        if(unstored.size() == 1) {
+            Metrics.STORE_BACKLOGS.increment();
+            storeBacklog = new CountDownLatch(1);
+            for(Client client : clients) {
+                client.stall(true);
+            }
+            store.whenReady(() -> executor.execute(this::storeUnstored));
+        }
+    }
 
-            pstmt.setString(1, roomName);
-            pstmt.setString(2, msg.getUserName());
-            pstmt.setString(3, msg.getMsg());
+    /**
+     * appends the msgs the store turned down, the clients are read again once it took every one of them
+     */
+    private void storeUnstored() {
+        WebSocketMsg msg;
+        while((msg = unstored.peek()) != null) {
+            if(!store.append(roomName, msg)) {
+                store.whenReady(() -> executor.execute(this::storeUnstored));
+                return;
+            }
+            unstored.poll();
+        }
+        for(Client client : clients) {
+            client.stall(false);
+        }
+        storeBacklog.countDown();
+        storeBacklog = null;
+        //a room that emptied meanwhile didn't close before its msgs were stored
+        if(state == State.DRAINING) {
+            reap();
+        }
+    }
 
-            pstmt.executeUpdate();
-            pstmt.close();
-        }catch(SQLException e) {
-            e.printStackTrace();
+    /**
+     * waits while msgs the history store turned down are waiting, for clients reading on their own threads
+     * @throws InterruptedException
+     */
+    void awaitStore() throws InterruptedException {
+        CountDownLatch backlog = storeBacklog;
+        if(backlog != null) {
+            backlog.await();
         }
     }
 
     /**
-     * @return true if the room has no active users
+     * @return true if the room has closed, only reliable on the room's executor
      */
     public boolean hasClosed() {
-        return hasClosed;
+        return state == State.CLOSED;
+    }
+
+    /**
+     * @return the room's lifecycle state, only reliable on the room's executor
+     */
+    public State getState() {
+        return state;
     }
 }
\ No newline at end of file
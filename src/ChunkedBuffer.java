@@ -0,0 +1,192 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The bytes of one msg, kept in chunks that are allocated as the bytes arrive.
+ * A large msg never needs one contiguous array as big as itself, and a client announcing a huge frame only gets
+ * memory for what it actually sends. The first chunk is never larger than the bytes still expected, so a small msg takes
+ * one array of exactly its size. Later chunks take at least MIN_CHUNK, a msg sent as many tiny fragments fills them
+ * rather than getting an array per fragment.
+ */
+public class ChunkedBuffer {
+    //largest chunk, msgs up to this size are kept in one array
+    static final int CHUNK = 64 * 1024;
+    //smallest chunk after the first
+    static final int MIN_CHUNK = 4 * 1024;
+
+    private byte[][] chunks;
+    private int count;
+    //bytes used in the last chunk and in all chunks
+    private int last;
+    private int size;
+    //chunk the last get was in and the index of its first byte, bytes are mostly read in order
+    private int cursor;
+    private int cursorBase;
+
+    public ChunkedBuffer() {
+        chunks = new byte[2][];
+    }
+
+    /**
+     * @param bytes
+     * @return a buffer holding the array as its only chunk
+     */
+    public static ChunkedBuffer wrap(byte[] bytes) {
+        ChunkedBuffer buf = new ChunkedBuffer();
+        buf.chunks[0] = bytes;
+        buf.count = 1;
+        buf.last = bytes.length;
+        buf.size = bytes.length;
+        return buf;
+    }
+
+    /**
+     * Copies bytes of a masked frame from the read buffer and unmasks them.
+     * @param in read buffer
+     * @param n bytes to copy
+     * @param mask the frame's masking key
+     * @param maskPos position of the first byte within the frame's payload
+     * @param expected bytes of the frame still to come including these, sizes the chunk if one is needed
+     */
+    public void write(ByteBuffer in, int n, byte[] mask, long maskPos, long expected) {
+        while (n > 0) {
+            byte[] chunk = writable(expected);
+            int k = Math.min(n, chunk.length - last);
+            in.get(chunk, last, k);
+            //index of the key byte is derived from the loop index, which keeps the loop simple for the JIT
+            int shift = (int) (maskPos & 3) - last;
+            for (int i = last; i < last + k; i++) {
+                chunk[i] ^= mask[(i + shift) & 3];
+            }
+            last += k;
+            size += k;
+            n -= k;
+            maskPos += k;
+            expected -= k;
+        }
+    }
+
+    /**
+     * appends bytes
+     * @param src
+     * @param off
+     * @param n
+     */
+    public void write(byte[] src, int off, int n) {
+        while (n > 0) {
+            byte[] chunk = writable(n);
+            int k = Math.min(n, chunk.length - last);
+            System.arraycopy(src, off, chunk, last, k);
+            last += k;
+            size += k;
+            n -= k;
+            off += k;
+        }
+    }
+
+    /**
+     * @return the last chunk, a new one if it is full
+     */
+    private byte[] writable(long expected) {
+        if (count == 0 || last == chunks[count - 1].length) {
+            if (count == chunks.length) {
+                chunks = Arrays.copyOf(chunks, count * 2);
+            }
+            long length = Math.max(count == 0 ? 1 : MIN_CHUNK, Math.min(CHUNK, expected));
+            chunks[count++] = new byte[(int) length];
+            last = 0;
+        }
+        return chunks[count - 1];
+    }
+
+    /**
+     * @return number of bytes held
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param i index
+     * @return the byte at the index
+     */
+    public byte get(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException(i + " of " + size);
+        }
+        if (i < cursorBase) {
+            cursor = 0;
+            cursorBase = 0;
+        }
+        while (i >= cursorBase + length(cursor)) {
+            cursorBase += length(cursor);
+            cursor++;
+        }
+        return chunks[cursor][i - cursorBase];
+    }
+
+    /**
+     * @return number of chunks
+     */
+    public int chunks() {
+        return count;
+    }
+
+    /**
+     * @param c
+     * @return the chunk, only the first length(c) bytes are used
+     */
+    public byte[] chunk(int c) {
+        return chunks[c];
+    }
+
+    /**
+     * @param c
+     * @return bytes used in the chunk
+     */
+    public int length(int c) {
+        return c == count - 1 ? last : chunks[c].length;
+    }
+
+    /**
+     * decodes a range of the bytes as UTF-8, malformed input becomes replacement chars
+     * @param from
+     * @param to
+     * @return the decoded string
+     */
+    public String string(int from, int to) {
+        //the common case, a range within one chunk is decoded straight from it
+        int start = from;
+        for (int c = 0; c < count; c++) {
+            int len = length(c);
+            if (start < len) {
+                if (to - from <= len - start) {
+                    return new String(chunks[c], start, to - from, StandardCharsets.UTF_8);
+                }
+                break;
+            }
+            start -= len;
+        }
+
+        //a range spanning chunks is copied out first, the string needs that much memory at once anyway and
+        //decoding one array is much faster than decoding a stream
+        byte[] bytes = new byte[to - from];
+        int n = 0;
+        start = from;
+        for (int c = 0; c < count && n < bytes.length; c++) {
+            int len = length(c);
+            if (start < len) {
+                int k = Math.min(len - start, bytes.length - n);
+                System.arraycopy(chunks[c], start, bytes, n, k);
+                n += k;
+                start = 0;
+            } else {
+                start -= len;
+            }
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,635 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import server.TimingWheel.Timeout;
+
+/**
+ * Per-connection state of a websocket client.
+ * Holds the client's channel, the frame decoder that keeps partially received frames between reads and the queue of
+ * frames waiting to be written. The queue is bounded: a client that can't keep up is handled by the slow consumer
+ * policy instead of holding up everyone else in the room.
+ * A heartbeat on the wheel of the client's loop pings the client once it goes quiet and drops it from its room once
+ * it stayed quiet too long, so a connection that died without a close is noticed.
+ * Msgs over a rate limit are dropped, held back while the client isn't read or end the connection, see RateLimits.
+ */
+public class Client implements Handler {
+    //the client's connection
+    private SocketChannel channel;
+    //decoder holding any partially read frame
+    private FrameDecoder decoder;
+    //bytes read past the join frame before the client was handed to a room, or past a msg held by the rate limit
+    private ByteBuffer leftover;
+
+    //most frames handed to a single gathering write
+    static final int MAX_BATCH = 64;
+    //array the batch of frames is put in, one per thread
+    private static final ThreadLocal<ByteBuffer[]> BATCH = ThreadLocal.withInitial(() -> new ByteBuffer[MAX_BATCH]);
+
+    //frames waiting to be written, the head may be partially written
+    private ArrayDeque<ByteBuffer> outbound;
+    private int queueLimit;
+    private SlowConsumerPolicy policy;
+    //the client's key with its loop's selector
+    private SelectionKey key;
+    //loop the client is registered with and the room it joined
+    private EventLoop loop;
+    private ChatRoom room;
+    //server used to find the room to join
+    private Server server;
+    //whether the key is currently registered for OP_WRITE
+    private boolean writeInterest;
+    //whether the client negotiated permessage-deflate and the binary subprotocol
+    private boolean deflate;
+    private boolean binary;
+    //id of the last msg a resuming client has, -1 for a client that wants the whole recent history
+    private long since = -1;
+    //name the client joined as, null for a client that didn't give one and isn't told who is in the room
+    private String name;
+
+    //ping sent to a quiet client, without payload
+    private static final ByteBuffer PING = WebSocketMsg.frame(9, new byte[0]).asReadOnlyBuffer();
+    //when the client last sent anything
+    private volatile long lastRead;
+    //the client's heartbeat and the loop whose wheel it's on
+    private final Timeout heartbeat = new Timeout(this::heartbeat);
+    private volatile EventLoop heartbeatLoop;
+
+    //the connection's rate limit, null if connections aren't limited
+    private final TokenBucket limit = RateLimits.connection();
+    //a msg the rate limit held back, the client isn't read until it went through along with the bytes read after it
+    private WebSocketMsg held;
+    private boolean paused;
+    private final Timeout release = new Timeout(this::release);
+    //set while the room's history store is backed up, the client isn't read meanwhile either
+    private boolean stalled;
+
+    public Client(SocketChannel channel) {
+        this(channel, Config.OUTBOUND_QUEUE_LIMIT, Config.SLOW_CONSUMER_POLICY);
+    }
+
+    public Client(SocketChannel channel, int queueLimit, SlowConsumerPolicy policy) {
+        this.channel = channel;
+        this.queueLimit = queueLimit;
+        this.policy = policy;
+        decoder = new FrameDecoder();
+        outbound = new ArrayDeque<>();
+        lastRead = System.currentTimeMillis();
+    }
+
+    /**
+     * Queues a frame for the client and writes as much as the socket takes right away.
+     * If the queue is full the slow consumer policy decides what gets dropped.
+     * @param frame
+     * @return false if the client should be disconnected
+     * @throws IOException
+     */
+    public boolean send(ByteBuffer frame) throws IOException {
+        if (outbound.size() >= queueLimit) {
+            switch (policy) {
+                case DISCONNECT:
+                    return false;
+                case DROP_OLDEST:
+                    dropOldest();
+                    break;
+                case SKIP_TO_LATEST:
+                    skipToLatest();
+                    break;
+            }
+        }
+        queue(frame);
+        return true;
+    }
+
+    /**
+     * Queues a frame without checking the limit, used to replay the room's history to a new client.
+     * @param frame
+     * @throws IOException
+     */
+    public void queue(ByteBuffer frame) throws IOException {
+        outbound.offer(frame);
+        //only the first frame needs a write, otherwise we are already waiting for OP_WRITE
+        if (outbound.size() == 1) {
+            flush();
+        }
+    }
+
+    /**
+     * Queues several frames without checking the limit and writes them together, used to replay history.
+     * @param frames
+     * @throws IOException
+     */
+    public void queueAll(List<ByteBuffer> frames) throws IOException {
+        boolean idle = outbound.isEmpty();
+        outbound.addAll(frames);
+        //otherwise we are already waiting for OP_WRITE
+        if (idle && !outbound.isEmpty()) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes queued frames until the queue is empty or the socket stops taking data,
+     * in which case the key is registered for OP_WRITE until the rest can be written.
+     * Queued frames are handed to the socket together in one gathering write.
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        ByteBuffer[] batch = BATCH.get();
+        while (!outbound.isEmpty()) {
+            int n = 0;
+            for (ByteBuffer frame : outbound) {
+                if (n == batch.length) {
+                    break;
+                }
+                batch[n++] = frame;
+            }
+
+            channel.write(batch, 0, n);
+            //the socket didn't take the whole batch
+            boolean full = batch[n - 1].hasRemaining();
+            Arrays.fill(batch, 0, n, null);
+
+            ByteBuffer head;
+            while ((head = outbound.peek()) != null && !head.hasRemaining()) {
+                outbound.poll();
+            }
+            if (full) {
+                break;
+            }
+        }
+
+        boolean pending = !outbound.isEmpty();
+        if (pending != writeInterest && key != null && key.isValid()) {
+            writeInterest = pending;
+            updateInterest();
+        }
+    }
+
+    /**
+     * registers the key for reads unless the client is paused or stalled and for writes while frames are waiting
+     */
+    private void updateInterest() {
+        if (key != null && key.isValid()) {
+            int read = paused || stalled ? 0 : SelectionKey.OP_READ;
+            key.interestOps(read | (writeInterest ? SelectionKey.OP_WRITE : 0));
+        }
+    }
+
+    /**
+     * drops the oldest frame that hasn't started being written, a partially written frame has to be finished
+     */
+    private void dropOldest() {
+        ByteBuffer head = outbound.poll();
+        if (head != null && head.position() > 0) {
+            outbound.poll();
+            outbound.offerFirst(head);
+        }
+    }
+
+    /**
+     * drops every queued frame except a partially written one
+     */
+    private void skipToLatest() {
+        ByteBuffer head = outbound.peek();
+        outbound.clear();
+        if (head != null && head.position() > 0) {
+            outbound.offer(head);
+        }
+    }
+
+    /**
+     * @return the next queued frame or null, for clients that write their queue from another thread
+     */
+    protected ByteBuffer takeQueued() {
+        return outbound.poll();
+    }
+
+    /**
+     * @return number of frames waiting to be written
+     */
+    public int queued() {
+        return outbound.size();
+    }
+
+    /**
+     * Waits for the client's first msg on the loop that answered its handshake.
+     * @param server server to look up the room the client asks to join
+     * @param loop loop the connection is registered with
+     * @param key the connection's key
+     * @param read bytes already read behind the handshake or null
+     * @throws IOException
+     */
+    public void awaitJoin(Server server, EventLoop loop, SelectionKey key, ByteBuffer read) throws IOException {
+        this.server = server;
+        this.loop = loop;
+        this.key = key;
+        key.attach(this);
+        key.interestOps(SelectionKey.OP_READ);
+        startHeartbeat(loop);
+        if (read != null) {
+            lobby(read);
+        }
+    }
+
+    /**
+     * Moves the client to a room's loop, called on the room's executor which for this client is an event loop.
+     * The key is reused if the client is already registered with the loop.
+     * @param room
+     * @param executor the room's executor
+     * @throws IOException
+     */
+    public void enter(ChatRoom room, Executor executor) throws IOException {
+        EventLoop loop = (EventLoop) executor;
+        if (key != null && key.isValid() && key.selector() == loop.getSelector()) {
+            key.attach(this);
+            key.interestOps(SelectionKey.OP_READ);
+        } else {
+            if (key != null) {
+                key.cancel();
+            }
+            key = loop.register(channel, this);
+        }
+        this.loop = loop;
+        this.room = room;
+        writeInterest = false;
+        startHeartbeat(loop);
+        //a pong the lobby queued may still be waiting, the key above lost its OP_WRITE
+        if (!outbound.isEmpty()) {
+            flush();
+        }
+    }
+
+    /**
+     * sets the room the client is in
+     * @param room
+     */
+    protected void setRoom(ChatRoom room) {
+        this.room = room;
+    }
+
+    /**
+     * reads from the client, passing whole frames to its room or to the join step if it isn't in a room yet
+     * @param key
+     * @throws IOException
+     */
+    @Override
+    public void handle(SelectionKey key) throws IOException {
+        if (key.isWritable()) {
+            flush();
+        }
+
+        if (key.isValid() && key.isReadable()) {
+            ByteBuffer buf = loop.getReadBuffer();
+            buf.clear();
+            if (channel.read(buf) < 0) {
+                close();
+                return;
+            }
+            buf.flip();
+            if (buf.hasRemaining()) {
+                touch();
+            }
+
+            if (room == null) {
+                lobby(buf);
+            } else {
+                room.process(this, buf);
+            }
+        }
+    }
+
+    /**
+     * Looks for the join msg, once it arrives the client is handed to the room.
+     * Anything read past it is kept for the room since the buffer belongs to the loop.
+     * @param buf
+     * @throws IOException
+     */
+    private void lobby(ByteBuffer buf) throws IOException {
+        WebSocketMsg msg;
+        //pings and pongs aren't chat msgs, the join msg may follow them
+        do {
+            msg = decoder.next(buf);
+            if (msg == null) {
+                return;
+            }
+            if (msg.isPing()) {
+                queue(msg.getPong());
+            }
+        } while (msg.isPingOrPong());
+
+        String room = parseJoin(msg);
+        if (room == null) {
+            close();
+            return;
+        }
+
+        if (buf.hasRemaining()) {
+            leftover = ByteBuffer.allocate(buf.remaining());
+            leftover.put(buf);
+            leftover.flip();
+        }
+
+        //stop reading here until the room's loop takes over, the room's loop runs the heartbeat from then on
+        key.interestOps(0);
+        stopHeartbeat();
+        server.checkIfRoomExists(room, this);
+    }
+
+    /**
+     * Reads the join msg, "join &lt;room&gt;" optionally followed by "since &lt;id&gt;" from a client that reconnects
+     * and already has the room's msgs up to the id and "as &lt;user&gt;" from a client that wants to be listed among
+     * the room's members and be told who comes and goes. The name can't be longer than Config.MAX_NAME_LENGTH or
+     * start with "/", which commands do.
+     * @param msg the client's first msg
+     * @return the room to join or null if the msg isn't a valid join msg
+     */
+    protected String parseJoin(WebSocketMsg msg) {
+        String[] words = msg.getMsg().split("\\s+");
+        if (msg.isClosed() || !msg.getUserName().equals("join") || words[0].isEmpty()) {
+            return null;
+        }
+        for (int i = 1; i < words.length; i += 2) {
+            String value = i + 1 < words.length ? words[i + 1] : "";
+            if (words[i].equals("since")) {
+                try {
+                    since = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+                if (since < 0) {
+                    return null;
+                }
+            } else if (words[i].equals("as")) {
+                if (value.isEmpty() || value.length() > Config.MAX_NAME_LENGTH || value.startsWith("/")) {
+                    return null;
+                }
+                name = value;
+            }
+        }
+        return words[0];
+    }
+
+    /**
+     * @return name the client joined as, null if it didn't give one
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return id of the last msg the client said it has, -1 if it joined without "since"
+     */
+    public long getSince() {
+        return since;
+    }
+
+    /**
+     * takes a token for the msg from the connection's, the user's and the room's rate limits
+     * @param msg msg of the client in its room, a command counts against the name the client joined as
+     * @return 0 if the msg may go through, otherwise nanos until it may
+     */
+    public long admit(WebSocketMsg msg) {
+        return RateLimits.check(limit, room.getRateLimit(), ChatRoom.isCommand(msg) ? name : msg.getUserName());
+    }
+
+    /**
+     * Holds back a msg over a rate limit, the client isn't read until the room had it go through.
+     * Called on the room's loop, which the client is on.
+     * @param msg
+     * @param rest bytes read after the msg, kept until then, or null
+     * @param waitNanos time until the msg may go through
+     */
+    void hold(WebSocketMsg msg, ByteBuffer rest, long waitNanos) {
+        held = msg;
+        if (rest != null && rest.hasRemaining()) {
+            leftover = ByteBuffer.allocate(rest.remaining());
+            leftover.put(rest);
+            leftover.flip();
+        }
+        paused = true;
+        updateInterest();
+        loop.getWheel().schedule(release, TimeUnit.NANOSECONDS.toMillis(waitNanos) + 1);
+    }
+
+    /**
+     * hands the held msg back to the room once its wait is over
+     */
+    private void release() {
+        if (room != null) {
+            room.resume(this);
+        }
+    }
+
+    /**
+     * @return the msg held back by the rate limit or null, only returned once
+     */
+    WebSocketMsg takeHeld() {
+        WebSocketMsg msg = held;
+        held = null;
+        return msg;
+    }
+
+    /**
+     * @return whether a msg is held back
+     */
+    boolean isHeld() {
+        return held != null;
+    }
+
+    /**
+     * reads from the client again after a held msg went through
+     */
+    void unpause() {
+        paused = false;
+        updateInterest();
+    }
+
+    /**
+     * stops or starts reading from the client for its room, called on the room's loop
+     * @param stalled
+     */
+    void stall(boolean stalled) {
+        this.stalled = stalled;
+        updateInterest();
+    }
+
+    /**
+     * closes the connection, leaving the room if the client joined one
+     */
+    @Override
+    public void close() {
+        if (room != null) {
+            room.removeClient(this);
+            return;
+        }
+        disconnect();
+    }
+
+    /**
+     * closes the client's connection without touching its room
+     */
+    public void disconnect() {
+        stopHeartbeat();
+        release.cancel();
+        try {
+            if (key != null) {
+                key.cancel();
+            }
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * puts the heartbeat on a loop's wheel, from another thread it's handed to the loop
+     * @param loop
+     */
+    protected void startHeartbeat(EventLoop loop) {
+        if (!loop.inLoop()) {
+            loop.execute(() -> startHeartbeat(loop));
+            return;
+        }
+        heartbeatLoop = loop;
+        loop.getWheel().schedule(heartbeat, Config.PING_MILLIS);
+    }
+
+    /**
+     * takes the heartbeat off its wheel, from another thread it's handed to the wheel's loop
+     */
+    protected void stopHeartbeat() {
+        EventLoop loop = heartbeatLoop;
+        if (loop == null) {
+            return;
+        }
+        if (loop.inLoop()) {
+            heartbeat.cancel();
+        } else {
+            loop.execute(heartbeat::cancel);
+        }
+    }
+
+    /**
+     * Runs on the heartbeat's loop when it comes due. A client quiet for the ping interval gets a ping, one quiet for
+     * the idle timeout is closed. Reads don't move the heartbeat, it looks at when the client last sent something and
+     * schedules itself for the next point anything could change.
+     */
+    private void heartbeat() {
+        if (!channel.isOpen()) {
+            return;
+        }
+        long quiet = System.currentTimeMillis() - lastRead;
+        if (quiet >= Config.IDLE_MILLIS) {
+            Metrics.IDLE_CLOSES.increment();
+            close();
+            return;
+        }
+        if (quiet >= Config.PING_MILLIS) {
+            try {
+                if (!send(PING.duplicate())) {
+                    close();
+                    return;
+                }
+                Metrics.PINGS.increment();
+            } catch (IOException e) {
+                close();
+                return;
+            }
+        }
+        long delay = quiet < Config.PING_MILLIS
+                ? Config.PING_MILLIS - quiet
+                : Math.min(Config.PING_MILLIS, Config.IDLE_MILLIS - quiet);
+        heartbeatLoop.getWheel().schedule(heartbeat, delay);
+    }
+
+    /**
+     * notes that the client sent something
+     */
+    protected void touch() {
+        lastRead = System.currentTimeMillis();
+    }
+
+    /**
+     * @return bytes read past the join frame or past a held msg, or null if there were none. Only returned once.
+     */
+    public ByteBuffer takeLeftover() {
+        ByteBuffer buf = leftover;
+        leftover = null;
+        return buf;
+    }
+
+    /**
+     * @return the client's channel
+     */
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * marks the client as having negotiated permessage-deflate, it gets compressed frames and may send them
+     * @param deflate
+     */
+    public void setDeflate(boolean deflate) {
+        this.deflate = deflate;
+        decoder.setDeflate(deflate);
+    }
+
+    /**
+     * @return whether the client negotiated permessage-deflate
+     */
+    public boolean isDeflate() {
+        return deflate;
+    }
+
+    /**
+     * marks the client as having negotiated the binary subprotocol, it gets binary frames instead of JSON
+     * @param binary
+     */
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    /**
+     * @return whether the client negotiated the binary subprotocol
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * @return index of the format the client negotiated, see WebSocketMsg
+     */
+    public int format() {
+        return WebSocketMsg.format(binary, deflate);
+    }
+
+    /**
+     * @param msg
+     * @return a view of the msg's frame in the format the client negotiated
+     */
+    public ByteBuffer frameOf(WebSocketMsg msg) {
+        return msg.getFrame(binary, deflate);
+    }
+
+    /**
+     * @return the client's frame decoder
+     */
+    public FrameDecoder getDecoder() {
+        return decoder;
+    }
+
+    /**
+     * @return the room the client joined or null
+     */
+    public ChatRoom getRoom() {
+        return room;
+    }
+}
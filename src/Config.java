@@ -0,0 +1,114 @@
+package server;
+
+/**
+ * Server settings.
+ * Every value has a default and can be overridden at startup with a system property, e.g.
+ * java -Dchat.outboundQueueLimit=512 -jar ChatServer.jar
+ */
+public class Config {
+    //how connections are handled: "reactor" for the event loops or "virtual" for a virtual thread per connection
+    public static final String MODE = System.getProperty("chat.mode", "reactor");
+
+    //number of selector loops connections and rooms are spread over
+    public static final int LOOPS = Integer.getInteger("chat.loops", Runtime.getRuntime().availableProcessors());
+
+    //max number of frames waiting to be written to a single client
+    public static final int OUTBOUND_QUEUE_LIMIT = Integer.getInteger("chat.outboundQueueLimit", 256);
+
+    //what to do with a client whose outbound queue is full
+    public static final SlowConsumerPolicy SLOW_CONSUMER_POLICY =
+            SlowConsumerPolicy.valueOf(System.getProperty("chat.slowConsumerPolicy", "DROP_OLDEST"));
+
+    //most msgs and bytes of encoded frames a room keeps in memory, older msgs stay in the database
+    public static final int HISTORY_MSGS = Integer.getInteger("chat.historyMsgs", 500);
+    public static final long HISTORY_BYTES = Long.getLong("chat.historyBytes", 256 * 1024);
+
+    //most msgs sent for one "/history before" request
+    public static final int HISTORY_PAGE = Integer.getInteger("chat.historyPage", 50);
+    //threads reading older msgs from the history store for the rooms, for joins and pages reaching past what's in memory
+    public static final int HISTORY_READERS = Integer.getInteger("chat.historyReaders", 2);
+
+    //where every msg of a room is kept: "sqlite" for the chatHistory database or "log" for a memory-mapped log per room
+    public static final String HISTORY_STORE = System.getProperty("chat.historyStore", "sqlite");
+    //directory of the rooms' logs, size a log segment is sealed at and how much and how long a room's log is kept
+    public static final String LOG_DIR = System.getProperty("chat.logDir", "history");
+    public static final long LOG_SEGMENT_BYTES = Long.getLong("chat.logSegmentBytes", 16 * 1024 * 1024);
+    public static final long LOG_RETENTION_BYTES = Long.getLong("chat.logRetentionBytes", 1024L * 1024 * 1024);
+    public static final long LOG_RETENTION_MILLIS = Long.getLong("chat.logRetentionMillis", 30L * 24 * 3600 * 1000);
+
+    //whether rooms keep a full-text index of their msgs for "/search", the directory the indexes are saved in, threads
+    //searching and updating them, most msgs a search answers with and ids an index keeps in memory before merging
+    //them into its file
+    public static final boolean SEARCH = Boolean.parseBoolean(System.getProperty("chat.search", "true"));
+    public static final String SEARCH_DIR = System.getProperty("chat.searchDir", "search");
+    public static final int SEARCH_THREADS = Integer.getInteger("chat.searchThreads",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    public static final int SEARCH_RESULTS = Integer.getInteger("chat.searchResults", 20);
+    public static final long SEARCH_MERGE_IDS = Long.getLong("chat.searchMergeIds", 1000000);
+
+    //most msgs waiting to be written to the database, rooms wait once it's full
+    public static final int DB_QUEUE = Integer.getInteger("chat.dbQueue", 10000);
+    //most msgs written in one transaction and longest a msg waits before its batch is written
+    public static final int DB_BATCH = Integer.getInteger("chat.dbBatch", 256);
+    public static final long DB_FLUSH_MILLIS = Long.getLong("chat.dbFlushMillis", 50);
+
+    //most bytes of static file responses kept in memory and the largest file cached, larger files are sent from disk
+    public static final long FILE_CACHE_BYTES = Long.getLong("chat.fileCacheBytes", 16 * 1024 * 1024);
+    public static final long FILE_CACHE_MAX_FILE = Long.getLong("chat.fileCacheMaxFile", 1024 * 1024);
+
+    //how long a kept alive http connection may sit without a request and most requests served on one connection
+    public static final long HTTP_IDLE_MILLIS = Long.getLong("chat.httpIdleMillis", 5000);
+    public static final int HTTP_MAX_REQUESTS = Integer.getInteger("chat.httpMaxRequests", 100);
+
+    //how long a room collects joins and leaves of named clients before telling its members about them in one frame
+    public static final long PRESENCE_MILLIS = Long.getLong("chat.presenceMillis", 250);
+
+    //how long an empty room stays open, a client joining in that time finds its history still in memory
+    public static final long ROOM_IDLE_MILLIS = Long.getLong("chat.roomIdleMillis", 30000);
+
+    //msgs a second a connection, a user name and a room may send on average and how many at once, 0 for no limit,
+    //and what happens to msgs over a limit. A burst of 0 takes a second's worth
+    public static final double CONNECTION_RATE = Double.parseDouble(System.getProperty("chat.connectionRate", "0"));
+    public static final int CONNECTION_BURST = burst("chat.connectionBurst", CONNECTION_RATE);
+    public static final double USER_RATE = Double.parseDouble(System.getProperty("chat.userRate", "0"));
+    public static final int USER_BURST = burst("chat.userBurst", USER_RATE);
+    public static final double ROOM_RATE = Double.parseDouble(System.getProperty("chat.roomRate", "0"));
+    public static final int ROOM_BURST = burst("chat.roomBurst", ROOM_RATE);
+    public static final RateLimitPolicy RATE_LIMIT_POLICY =
+            RateLimitPolicy.valueOf(System.getProperty("chat.rateLimitPolicy", "DELAY"));
+
+    //whether a closing room writes its recent history to a file under hibernateDir, read back instead of the history
+    //store when the room opens again, and how long such a file is kept for a room that doesn't come back
+    public static final boolean HIBERNATE = Boolean.parseBoolean(System.getProperty("chat.hibernate", "true"));
+    public static final String HIBERNATE_DIR = System.getProperty("chat.hibernateDir", "hibernate");
+    public static final long HIBERNATE_MILLIS = Long.getLong("chat.hibernateMillis", 24L * 3600 * 1000);
+
+    //how long a websocket client may stay silent before it's pinged and before it's dropped as dead, any frame it
+    //sends counts, including the pong to our ping
+    public static final long PING_MILLIS = Long.getLong("chat.pingMillis", 30000);
+    public static final long IDLE_MILLIS = Long.getLong("chat.idleMillis", 75000);
+
+    //whether websocket clients may negotiate permessage-deflate and the smallest frame payload worth compressing
+    public static final boolean DEFLATE = Boolean.parseBoolean(System.getProperty("chat.deflate", "true"));
+    public static final int DEFLATE_MIN = Integer.getInteger("chat.deflateMin", 64);
+
+    //most bytes a client's msg may have, checked against each frame's length before it's read and against the size
+    //a compressed msg inflates to
+    public static final int MAX_MESSAGE_BYTES = Integer.getInteger("chat.maxMessageBytes", 1024 * 1024);
+
+    //most chars of the name a client joins a room as
+    public static final int MAX_NAME_LENGTH = Integer.getInteger("chat.maxNameLength", 32);
+
+    private Config() {
+    }
+
+    /**
+     * @param property
+     * @param rate
+     * @return the burst set by the property, a second's worth of the rate by default
+     */
+    private static int burst(String property, double rate) {
+        int burst = Integer.getInteger(property, 0);
+        return burst > 0 ? burst : (int) Math.max(1, Math.ceil(rate));
+    }
+}
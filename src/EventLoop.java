@@ -0,0 +1,146 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * A selector loop running on its own thread.
+ * The server starts a fixed number of loops and spreads connections and rooms over them, so the number of threads
+ * doesn't change with the number of rooms or sockets. Everything registered with a loop is only ever touched on the
+ * loop's thread, other threads hand work over with execute.
+ */
+public class EventLoop implements Runnable, Executor {
+    //selector all of the loop's channels are registered with
+    private Selector selector;
+    //tasks handed over from other threads
+    private ConcurrentLinkedQueue<Runnable> tasks;
+    //buffer every read on this loop goes through, partial data is kept by the handlers
+    private ByteBuffer readBuffer;
+
+    private Thread thread;
+
+    //deadlines of the loop's connections, a tick is short compared to any timeout it holds
+    private static final long TICK_MILLIS = 100;
+    private static final int WHEEL_SLOTS = 512;
+    private TimingWheel wheel;
+
+    /**
+     * constructor
+     * @param name name of the loop's thread
+     * @throws IOException
+     */
+    public EventLoop(String name) throws IOException {
+        selector = Selector.open();
+        tasks = new ConcurrentLinkedQueue<>();
+        readBuffer = ByteBuffer.allocateDirect(16 * 1024);
+        wheel = new TimingWheel(TICK_MILLIS, WHEEL_SLOTS, System.currentTimeMillis());
+        thread = new Thread(this, name);
+    }
+
+    /**
+     * starts the loop's thread
+     */
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * runs a task on the loop's thread
+     * @param task
+     */
+    @Override
+    public void execute(Runnable task) {
+        tasks.offer(task);
+        if (!inLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * registers a new connection with the loop, must be called on the loop's thread
+     * @param channel
+     * @param handler
+     * @return the channel's key
+     * @throws IOException
+     */
+    public SelectionKey register(SocketChannel channel, Handler handler) throws IOException {
+        channel.configureBlocking(false);
+        return channel.register(selector, SelectionKey.OP_READ, handler);
+    }
+
+    /**
+     * Waits for ready channels and passes each one to its handler, then runs the tasks other threads handed over.
+     * A handler that throws only loses its own connection. The select never sleeps past the wheel's next tick, so
+     * timeouts that came due run right after.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select(wheel.millisToNextTick(System.currentTimeMillis()));
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+
+            Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+            while (iter.hasNext()) {
+                SelectionKey key = iter.next();
+                iter.remove();
+                Handler handler = (Handler) key.attachment();
+                try {
+                    if (key.isValid()) {
+                        handler.handle(key);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    handler.close();
+                }
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            wheel.advance(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * @return true if called from the loop's own thread
+     */
+    public boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * @return the loop's selector
+     */
+    public Selector getSelector() {
+        return selector;
+    }
+
+    /**
+     * @return the loop's timing wheel, must only be used on the loop's thread
+     */
+    public TimingWheel getWheel() {
+        return wheel;
+    }
+
+    /**
+     * @return the loop's shared read buffer, only valid until the handler returns
+     */
+    public ByteBuffer getReadBuffer() {
+        return readBuffer;
+    }
+}
@@ -0,0 +1,317 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps complete, ready to send responses for the static files under resources.
+ *
+ * A cached file holds its 200 response (headers and body) and its 304 response, plus a gzipped 200 response when
+ * that is smaller. Every lookup compares the file's modification time and length with the cached copy, so an edited
+ * file is reloaded on its next request. Files larger than the per file limit, or that would push the cache over its
+ * total limit, aren't cached and get sent straight from disk instead. Room for a file is taken before it's read, so a
+ * file that doesn't fit is never read or compressed for the cache.
+ */
+public class FileCache {
+    /**
+     * A cached file and everything needed to answer a request for it.
+     */
+    public static class Entry {
+        private long modified;
+        private long length;
+
+        //validators of the plain and gzipped body
+        private String etag;
+        private String gzipEtag;
+
+        //status lines and headers without the blank line ending them, and the bodies, all shared read-only
+        private ByteBuffer ok;
+        private ByteBuffer gzip;
+        private ByteBuffer notModified;
+        private ByteBuffer gzipNotModified;
+        private ByteBuffer body;
+        private ByteBuffer gzipBody;
+
+        /**
+         * @param acceptsGzip whether the client accepts a gzipped body
+         * @param ifNoneMatch the request's If-None-Match or null
+         * @param ifModifiedSince the request's If-Modified-Since or null
+         * @param connection the Connection header and blank line ending the headers
+         * @return views of the response to send, in order
+         */
+        public ByteBuffer[] response(boolean acceptsGzip, String ifNoneMatch, String ifModifiedSince,
+                                     ByteBuffer connection) {
+            boolean zipped = acceptsGzip && gzip != null;
+            String tag = zipped ? gzipEtag : etag;
+            if (FileCache.notModified(tag, modified, ifNoneMatch, ifModifiedSince)) {
+                return new ByteBuffer[] {(zipped ? gzipNotModified : notModified).duplicate(), connection};
+            }
+            return new ByteBuffer[] {(zipped ? gzip : ok).duplicate(), connection,
+                    (zipped ? gzipBody : body).duplicate()};
+        }
+
+        /**
+         * @return size of all the responses held
+         */
+        private long size() {
+            return ok.capacity() + body.capacity() + notModified.capacity() + gzipNotModified.capacity()
+                    + (gzip == null ? 0 : gzip.capacity() + gzipBody.capacity());
+        }
+    }
+
+    //room taken for a file's headers before it's read, more than the headers of all its responses add up to
+    private static final int HEADERS_BYTES = 2048;
+
+    //cached files by path
+    private ConcurrentHashMap<String, Entry> entries;
+    //total size of all cached responses
+    private AtomicLong size;
+
+    private long maxSize;
+    private long maxFileSize;
+
+    /**
+     * constructor
+     * @param maxSize most bytes held by the cache
+     * @param maxFileSize largest file that is cached
+     */
+    public FileCache(long maxSize, long maxFileSize) {
+        entries = new ConcurrentHashMap<>();
+        size = new AtomicLong();
+        this.maxSize = maxSize;
+        this.maxFileSize = maxFileSize;
+    }
+
+    /**
+     * @param file an existing file
+     * @return the cached responses for the file, loading them if the file is new or changed,
+     * or null if the file is too large to cache or doesn't fit in the cache
+     * @throws IOException
+     */
+    public Entry get(File file) throws IOException {
+        String path = file.getPath();
+        long modified = file.lastModified();
+        long length = file.length();
+
+        Entry entry = entries.get(path);
+        if (entry != null && entry.modified == modified && entry.length == length) {
+            return entry;
+        }
+        //a changed file gives its room back before the new version takes any
+        remove(path, entry);
+        if (length > maxFileSize) {
+            return null;
+        }
+
+        //cache is full, the file is sent from disk without being read here
+        long reserved = reserve(length);
+        if (reserved < 0) {
+            return null;
+        }
+        Entry loaded;
+        try {
+            loaded = load(file, modified, length);
+        } catch (IOException e) {
+            size.addAndGet(-reserved);
+            throw e;
+        }
+        if (entries.putIfAbsent(path, loaded) != null) {
+            //another thread loaded the file at the same time, use theirs next time
+            size.addAndGet(-reserved);
+            return loaded;
+        }
+        size.addAndGet(loaded.size() - reserved);
+        return loaded;
+    }
+
+    /**
+     * Takes room for a file's responses before it's read, as much as they can take: the body, a gzipped body that is
+     * only kept when it's smaller, and the headers. What the responses don't use is given back once they're built.
+     * @param length the file's length
+     * @return the bytes taken, -1 if the file doesn't fit
+     */
+    private long reserve(long length) {
+        long needed = 2 * length + HEADERS_BYTES;
+        while (true) {
+            long current = size.get();
+            if (current + needed > maxSize) {
+                return -1;
+            }
+            if (size.compareAndSet(current, current + needed)) {
+                return needed;
+            }
+        }
+    }
+
+    private void remove(String path, Entry entry) {
+        if (entry != null && entries.remove(path, entry)) {
+            size.addAndGet(-entry.size());
+        }
+    }
+
+    /**
+     * reads the file and builds its responses
+     */
+    private Entry load(File file, long modified, long length) throws IOException {
+        byte[] body = Files.readAllBytes(file.toPath());
+
+        Entry entry = new Entry();
+        entry.modified = modified;
+        entry.length = length;
+        entry.etag = etag(modified, body.length);
+        entry.gzipEtag = entry.etag.substring(0, entry.etag.length() - 1) + "-gz\"";
+
+        String type = contentType(file.getName());
+        byte[] zipped = gzip(body);
+        boolean useGzip = zipped.length < body.length;
+
+        entry.ok = readOnly(ascii(headers(type, body.length, entry.etag, modified, null, useGzip)));
+        entry.body = readOnly(body);
+        entry.notModified = readOnly(ascii(notModifiedHeaders(entry.etag, modified, useGzip)));
+        entry.gzipNotModified = readOnly(ascii(notModifiedHeaders(entry.gzipEtag, modified, true)));
+        if (useGzip) {
+            entry.gzip = readOnly(ascii(headers(type, zipped.length, entry.gzipEtag, modified, "gzip", true)));
+            entry.gzipBody = readOnly(zipped);
+        }
+        return entry;
+    }
+
+    /**
+     * builds the headers of a 200 response, also used for files that are too large to cache
+     * @param type content type
+     * @param length body length
+     * @param etag
+     * @param modified
+     * @param encoding content encoding or null
+     * @param vary whether the response depends on Accept-Encoding
+     * @return the status line and headers, the Connection header and blank line are added per request
+     */
+    static String headers(String type, long length, String etag, long modified, String encoding, boolean vary) {
+        StringBuilder head = new StringBuilder("HTTP/1.1 200 OK\r\n");
+        head.append("Content-Type: ").append(type).append("\r\n");
+        head.append("Content-Length: ").append(length).append("\r\n");
+        if (encoding != null) {
+            head.append("Content-Encoding: ").append(encoding).append("\r\n");
+        }
+        if (vary) {
+            head.append("Vary: Accept-Encoding\r\n");
+        }
+        head.append("ETag: ").append(etag).append("\r\n");
+        head.append("Last-Modified: ").append(httpDate(modified)).append("\r\n");
+        head.append("Cache-Control: no-cache\r\n");
+        return head.toString();
+    }
+
+    /**
+     * builds the headers of a 304 response, which has no body
+     */
+    static String notModifiedHeaders(String etag, long modified, boolean vary) {
+        return "HTTP/1.1 304 Not Modified\r\n"
+                + (vary ? "Vary: Accept-Encoding\r\n" : "")
+                + "ETag: " + etag + "\r\n"
+                + "Last-Modified: " + httpDate(modified) + "\r\n";
+    }
+
+    /**
+     * Checks the request's validators against the file, If-None-Match wins over If-Modified-Since.
+     * @param etag current etag
+     * @param modified current modification time
+     * @param ifNoneMatch
+     * @param ifModifiedSince
+     * @return true if the client's copy is still current
+     */
+    static boolean notModified(String etag, long modified, String ifNoneMatch, String ifModifiedSince) {
+        if (ifNoneMatch != null) {
+            return ifNoneMatch.equals("*") || ifNoneMatch.contains(etag);
+        }
+        if (ifModifiedSince != null) {
+            try {
+                return modified / 1000 <= dateFormat().parse(ifModifiedSince).getTime() / 1000;
+            } catch (ParseException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return a validator made of the file's modification time and length
+     */
+    static String etag(long modified, long length) {
+        return "\"" + Long.toHexString(modified) + "-" + Long.toHexString(length) + "\"";
+    }
+
+    /**
+     * @param name file name
+     * @return content type by file extension
+     */
+    static String contentType(String name) {
+        String ext = name.substring(name.lastIndexOf('.') + 1).toLowerCase();
+        switch (ext) {
+            case "html":
+                return "text/html; charset=utf-8";
+            case "css":
+                return "text/css; charset=utf-8";
+            case "js":
+                return "application/javascript; charset=utf-8";
+            case "jpeg":
+            case "jpg":
+                return "image/jpeg";
+            case "png":
+                return "image/png";
+            default:
+                return "application/octet-stream";
+        }
+    }
+
+    /**
+     * @param millis
+     * @return the time as an HTTP date
+     */
+    static String httpDate(long millis) {
+        return dateFormat().format(new Date(millis));
+    }
+
+    private static SimpleDateFormat dateFormat() {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+
+    private static byte[] gzip(byte[] body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 2 + 32);
+        try (GZIPOutputStream zip = new GZIPOutputStream(out)) {
+            zip.write(body);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the text's bytes
+     */
+    static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return the bytes in a read-only direct buffer
+     */
+    static ByteBuffer readOnly(byte[] bytes) {
+        ByteBuffer buf = ByteBuffer.allocateDirect(bytes.length);
+        buf.put(bytes);
+        buf.flip();
+        return buf.asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,236 @@
+package server;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental websocket frame decoder.
+ * Works directly on the bytes a non-blocking read produced, so a frame can arrive split over any number of reads
+ * and one read can contain several frames. All partial state (header, length, mask and payload read so far) lives
+ * in the decoder, which means every connection owns one decoder and the read buffer itself can be shared.
+ * Fragmented msgs are put back together from their continuation frames, control frames may come in between.
+ * A msg's size is checked against the limit as soon as a frame's length is known, before anything is allocated for
+ * it, and its bytes are kept in chunks allocated as they arrive.
+ */
+public class FrameDecoder {
+    //decoder states
+    private static final int HEADER = 0, LENGTH = 1, MASK = 2, PAYLOAD = 3;
+
+    //longest payload of a control frame
+    private static final int MAX_CONTROL = 125;
+
+    private int state;
+
+    //opcode of the frame, -1 until the first header byte is read, and whether it's the msg's last frame
+    private int opcode;
+    private boolean fin;
+    //whether the frame's payload is compressed, only allowed once permessage-deflate was negotiated
+    private boolean compressed;
+    private boolean deflate;
+
+    //number of extended length bytes still to be read
+    private int lenBytes;
+    private long payloadLen;
+
+    //masking key and how many bytes of it have been read
+    private byte[] mask;
+    private int maskRead;
+
+    //bytes of the frame's payload read so far
+    private long payloadPos;
+    //payload of a control frame, kept apart so it can arrive in the middle of a fragmented msg
+    private byte[] control;
+
+    //msg being put together from its frames, null between msgs, with its opcode and whether it's compressed
+    private ChunkedBuffer message;
+    private int messageOpcode;
+    private boolean messageCompressed;
+
+    //most bytes a msg may have
+    private int maxMessage;
+
+    public FrameDecoder() {
+        this(Config.MAX_MESSAGE_BYTES);
+    }
+
+    public FrameDecoder(int maxMessage) {
+        this.maxMessage = maxMessage;
+        mask = new byte[4];
+        reset();
+    }
+
+    /**
+     * Consumes bytes from the buffer until one msg is complete.
+     * Bytes that belong to the next frame are left in the buffer, so callers loop until this returns null,
+     * at which point the buffer has been fully consumed and any partial frame is kept for the next call.
+     * @param in bytes read from the client, in read mode
+     * @return the decoded msg or null if the buffer ran out before the msg was complete
+     * @throws IOException if the frame is malformed or the msg too large
+     */
+    public WebSocketMsg next(ByteBuffer in) throws IOException {
+        while (in.hasRemaining()) {
+            switch (state) {
+                case HEADER:
+                    readHeader(in);
+                    break;
+                case LENGTH:
+                    payloadLen = (payloadLen << 8) | (in.get() & 0xFF);
+                    if (--lenBytes == 0) {
+                        startMask();
+                    }
+                    break;
+                case MASK:
+                    mask[maskRead++] = in.get();
+                    if (maskRead == 4) {
+                        state = PAYLOAD;
+                    }
+                    break;
+                case PAYLOAD:
+                    int n = (int) Math.min(in.remaining(), payloadLen - payloadPos);
+                    if (control != null) {
+                        in.get(control, (int) payloadPos, n);
+                        unmask(control, (int) payloadPos, (int) payloadPos + n);
+                    } else {
+                        message.write(in, n, mask, payloadPos, payloadLen - payloadPos);
+                    }
+                    payloadPos += n;
+                    break;
+            }
+
+            if (state == PAYLOAD && payloadPos == payloadLen) {
+                WebSocketMsg msg = endFrame();
+                if (msg != null) {
+                    return msg;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * reads one header byte, FIN, reserved bits and opcode first and then the mask bit and 7 bit length
+     */
+    private void readHeader(ByteBuffer in) throws IOException {
+        if (opcode < 0) {
+            byte b = in.get();
+            fin = (b & 0x80) != 0;
+            opcode = b & 0xF;
+            compressed = (b & 0x40) != 0;
+            if ((b & 0x30) != 0 || compressed && (!deflate || opcode == 0 || opcode >= 8)) {
+                throw new ProtocolException("unexpected reserved bits: " + Integer.toHexString(b & 0x70));
+            }
+            if (opcode >= 8) {
+                if (!fin || opcode > 10) {
+                    throw new ProtocolException("bad control frame: " + opcode);
+                }
+            } else if (opcode == 0) {
+                if (message == null) {
+                    throw new ProtocolException("continuation frame without a msg");
+                }
+            } else if (opcode > 2) {
+                throw new ProtocolException("unknown opcode: " + opcode);
+            } else if (message != null) {
+                throw new ProtocolException("new msg before the last one ended");
+            }
+            return;
+        }
+
+        byte b = in.get();
+        if ((b & 0x80) == 0) {
+            throw new ProtocolException("client frames must be masked");
+        }
+
+        int readLen = b & 0x7F;
+        if (readLen == 126) {
+            lenBytes = 2;
+            state = LENGTH;
+        } else if (readLen == 127) {
+            lenBytes = 8;
+            state = LENGTH;
+        } else {
+            payloadLen = readLen;
+            startMask();
+        }
+    }
+
+    /**
+     * checks the frame's length against the limits once it's known, then sets up where its payload goes
+     */
+    private void startMask() throws IOException {
+        if (opcode >= 8) {
+            if (payloadLen > MAX_CONTROL) {
+                throw new ProtocolException("control frame too large: " + payloadLen);
+            }
+            control = new byte[(int) payloadLen];
+        } else {
+            long size = (message == null ? 0 : message.size()) + payloadLen;
+            //a negative length is a 64 bit length with the top bit set
+            if (payloadLen < 0 || size > maxMessage) {
+                throw new ProtocolException("msg too large: " + (payloadLen < 0 ? payloadLen : size));
+            }
+            if (message == null) {
+                message = new ChunkedBuffer();
+                messageOpcode = opcode;
+                messageCompressed = compressed;
+            }
+        }
+        state = MASK;
+        maskRead = 0;
+        payloadPos = 0;
+    }
+
+    /**
+     * @return the control frame or the finished msg, null if the frame was a fragment of a msg still going on
+     */
+    private WebSocketMsg endFrame() throws IOException {
+        WebSocketMsg msg = null;
+        if (control != null) {
+            msg = new WebSocketMsg(opcode, control);
+        } else if (fin) {
+            ChunkedBuffer payload = message;
+            if (messageCompressed) {
+                payload = PerMessageDeflate.inflate(payload, maxMessage);
+            }
+            if (messageOpcode == 2 && !BinaryCodec.isValid(payload)) {
+                throw new ProtocolException("malformed binary msg");
+            }
+            msg = new WebSocketMsg(messageOpcode, payload);
+            message = null;
+        }
+        Metrics.FRAMES_DECODED.increment();
+        reset();
+        return msg;
+    }
+
+    /**
+     * lets the client send compressed frames, once permessage-deflate was negotiated
+     * @param deflate
+     */
+    public void setDeflate(boolean deflate) {
+        this.deflate = deflate;
+    }
+
+    /**
+     * unmasks a range of a control frame's payload in one pass instead of byte by byte as it is read
+     */
+    private void unmask(byte[] payload, int from, int to) {
+        for (int i = from; i < to; i++) {
+            payload[i] ^= mask[i & 3];
+        }
+    }
+
+    /**
+     * prepares the decoder for the next frame, a msg still going on is kept
+     */
+    private void reset() {
+        state = HEADER;
+        opcode = -1;
+        fin = false;
+        compressed = false;
+        lenBytes = 0;
+        payloadLen = 0;
+        payloadPos = 0;
+        control = null;
+    }
+}
@@ -0,0 +1,22 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+
+/**
+ * Attachment of every key registered with an event loop.
+ * The loop hands each ready key to its handler, which reads and writes the channel without blocking.
+ */
+public interface Handler {
+    /**
+     * called on the loop's thread when the key is ready
+     * @param key
+     * @throws IOException closes the handler
+     */
+    void handle(SelectionKey key) throws IOException;
+
+    /**
+     * closes the handler's connection, called when handle fails
+     */
+    void close();
+}
@@ -0,0 +1,169 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The recent history of a room that closed, so the room opening again doesn't have to read it back from the history
+ * store and encode every msg again.
+ * A header with the id the room's next msg gets and the number of msgs, then a record per msg laid out like the
+ * records of a RoomLog, JSON frame included. Reading it is one read into one direct buffer, every msg gets a view of
+ * its frame in that buffer. The file is deleted once it's read, so after a crash the room opens from the store as
+ * before, and a file that doesn't check out entirely is ignored the same way.
+ */
+public class HibernationFile {
+    //"CHHB" at the start of the file
+    private static final int MAGIC = 0x43484842;
+    //magic, id of the room's next msg and number of msgs
+    private static final int HEADER = 16;
+
+    private File file;
+    //what the file held, set by read
+    private List<WebSocketMsg> msgs;
+    private long nextId;
+
+    /**
+     * @param file where the room's history is written
+     */
+    public HibernationFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * writes the history to the file, next to it first and then renamed over it
+     * @param history the room's recent history
+     * @param nextId id the room's next msg would have gotten
+     * @throws IOException
+     */
+    public void write(HistoryRing history, long nextId) throws IOException {
+        int n = history.size();
+        ByteBuffer[] frames = new ByteBuffer[n];
+        byte[][] users = new byte[n][];
+        byte[][] texts = new byte[n][];
+        long size = HEADER;
+        for (int i = 0; i < n; i++) {
+            WebSocketMsg msg = history.get(i);
+            frames[i] = msg.getFrame();
+            users[i] = msg.getUserName().getBytes(StandardCharsets.UTF_8);
+            texts[i] = msg.getMsg().getBytes(StandardCharsets.UTF_8);
+            size += RoomLog.HEADER + RoomLog.FIXED + frames[i].remaining() + users[i].length + texts[i].length;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("history too large to hibernate: " + size);
+        }
+
+        ByteBuffer out = ByteBuffer.allocateDirect((int) size);
+        out.putInt(MAGIC).putLong(nextId).putInt(n);
+        int pos = HEADER;
+        for (int i = 0; i < n; i++) {
+            pos += RoomLog.put(out, pos, history.get(i), frames[i], users[i], texts[i]);
+        }
+        out.clear();
+
+        File tmp = new File(file.getPath() + ".tmp");
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * reads and deletes the file
+     * @return whether there was a whole file, msgs and nextId are only set if there was
+     */
+    public boolean read() {
+        if (!file.exists()) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER || size > Integer.MAX_VALUE) {
+                return false;
+            }
+            ByteBuffer in = ByteBuffer.allocateDirect((int) size);
+            while (in.hasRemaining()) {
+                if (channel.read(in) < 0) {
+                    return false;
+                }
+            }
+            in.flip();
+            if (in.getInt(0) != MAGIC) {
+                return false;
+            }
+
+            int n = in.getInt(12);
+            if (n < 0 || n > (size - HEADER) / (RoomLog.HEADER + RoomLog.FIXED)) {
+                return false;
+            }
+            List<WebSocketMsg> read = new ArrayList<>(n);
+            int pos = HEADER;
+            for (int i = 0; i < n; i++) {
+                int len = RoomLog.check(in, pos, in.limit());
+                if (len < 0) {
+                    return false;
+                }
+                read.add(RoomLog.record(in, pos, len));
+                pos += RoomLog.HEADER + len;
+            }
+            msgs = read;
+            nextId = in.getLong(4);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * deletes the file if there is one
+     */
+    public void delete() {
+        file.delete();
+    }
+
+    /**
+     * @return the msgs read, oldest first
+     */
+    public List<WebSocketMsg> getMsgs() {
+        return msgs;
+    }
+
+    /**
+     * @return id the room's next msg gets
+     */
+    public long getNextId() {
+        return nextId;
+    }
+
+    /**
+     * deletes files in the directory that were written longer ago than the given time, rooms that never came back
+     * @param dir
+     * @param maxAgeMillis
+     */
+    public static void sweep(File dir, long maxAgeMillis) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long oldest = System.currentTimeMillis() - maxAgeMillis;
+        for (File file : files) {
+            if (file.lastModified() < oldest) {
+                file.delete();
+            }
+        }
+    }
+}
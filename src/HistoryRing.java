@@ -0,0 +1,112 @@
+package server;
+
+/**
+ * Fixed size ring of a room's most recent msgs.
+ * Bounded both by number of msgs and by bytes, adding a msg evicts the oldest ones until both limits hold,
+ * so the heap a room uses for its history and the time it takes to replay it to a new client are capped.
+ * The msgs keep the frames they were encoded into, replaying to a client in a format that was sent before doesn't
+ * encode anything. Bytes are counted by the msgs' JSON frames.
+ */
+public class HistoryRing {
+    //msgs, their ids and the bytes they were counted with, oldest at head
+    private WebSocketMsg[] msgs;
+    private long[] ids;
+    private int[] sizes;
+    private int head;
+    private int size;
+
+    //total size of the msgs held and the most that may be held
+    private long bytes;
+    private long maxBytes;
+
+    /**
+     * constructor
+     * @param maxMsgs most msgs held
+     * @param maxBytes most bytes held
+     */
+    public HistoryRing(int maxMsgs, long maxBytes) {
+        msgs = new WebSocketMsg[Math.max(maxMsgs, 1)];
+        ids = new long[msgs.length];
+        sizes = new int[msgs.length];
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * adds the newest msg, evicting the oldest msgs as needed
+     * a msg larger than the byte limit on its own is not kept
+     * @param msg msg with its id set, ids only ever increase
+     */
+    public void add(WebSocketMsg msg) {
+        int len = msg.getFrame().remaining();
+        if (len > maxBytes) {
+            return;
+        }
+        while (size == msgs.length || bytes + len > maxBytes) {
+            evict();
+        }
+
+        int idx = (head + size) % msgs.length;
+        msgs[idx] = msg;
+        ids[idx] = msg.getId();
+        sizes[idx] = len;
+        bytes += len;
+        size++;
+    }
+
+    /**
+     * drops the oldest msg
+     */
+    private void evict() {
+        bytes -= sizes[head];
+        msgs[head] = null;
+        head = (head + 1) % msgs.length;
+        size--;
+    }
+
+    /**
+     * @param i index from oldest
+     * @return the msg at the index
+     */
+    public WebSocketMsg get(int i) {
+        return msgs[(head + i) % msgs.length];
+    }
+
+    /**
+     * @param i index from oldest
+     * @return id of the msg at the index
+     */
+    public long idAt(int i) {
+        return ids[(head + i) % msgs.length];
+    }
+
+    /**
+     * @param id
+     * @return index of the first msg with an id of at least the given id, or size if there is none
+     */
+    public int indexOf(long id) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (idAt(mid) < id) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @return number of msgs held
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return total bytes held
+     */
+    public long bytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,95 @@
+package server;
+
+import java.sql.*;
+
+/**
+ * Creates the chat history table or brings an older one up to date.
+ *
+ * Every msg has an id that counts up per room and the time it was sent, with a unique index on (room, id) so a room
+ * can read its latest msgs or a page before some id without scanning the whole table.
+ * The first version of the table only had room, user and msg. Its rows are copied over in row order and numbered
+ * per room, with a time of 0 since it was never recorded.
+ */
+public class HistorySchema {
+    private static final String CREATE = "CREATE TABLE chatHistory (\n"
+            + "room text NOT NULL,\n"
+            + "id integer NOT NULL,\n"
+            + "ts integer NOT NULL,\n"
+            + "user text,\n"
+            + "msg text\n"
+            + ")";
+
+    private static final String INDEX = "CREATE UNIQUE INDEX IF NOT EXISTS chatHistory_room_id ON chatHistory(room, id)";
+
+    private HistorySchema() {
+    }
+
+    /**
+     * makes sure the chat history table exists in its current form
+     * @param connection
+     * @throws SQLException
+     */
+    public static void migrate(Connection connection) throws SQLException {
+        boolean exists = false, hasId = false;
+        try (Statement stmt = connection.createStatement();
+             ResultSet res = stmt.executeQuery("PRAGMA table_info(chatHistory)")) {
+            while (res.next()) {
+                exists = true;
+                hasId |= res.getString("name").equals("id");
+            }
+        }
+
+        try (Statement stmt = connection.createStatement()) {
+            if (!exists) {
+                stmt.executeUpdate(CREATE);
+            } else if (!hasId) {
+                upgrade(connection);
+            }
+            stmt.executeUpdate(INDEX);
+        }
+    }
+
+    /**
+     * copies the rows of the first version of the table into the new one, all in one transaction
+     * @param connection
+     * @throws SQLException
+     */
+    private static void upgrade(Connection connection) throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (Statement stmt = connection.createStatement()) {
+            stmt.executeUpdate("ALTER TABLE chatHistory RENAME TO chatHistoryOld");
+            stmt.executeUpdate(CREATE);
+
+            try (ResultSet res = stmt.executeQuery("SELECT room, user, msg FROM chatHistoryOld ORDER BY room, rowid");
+                 PreparedStatement insert = connection.prepareStatement(
+                         "INSERT INTO chatHistory(room, id, ts, user, msg) VALUES(?, ?, 0, ?, ?)")) {
+                String room = null;
+                long id = 0;
+                while (res.next()) {
+                    String next = res.getString("room");
+                    if (next == null) {
+                        continue;
+                    }
+                    id = next.equals(room) ? id + 1 : 1;
+                    room = next;
+
+                    insert.setString(1, room);
+                    insert.setLong(2, id);
+                    insert.setString(3, res.getString("user"));
+                    insert.setString(4, res.getString("msg"));
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+            }
+
+            stmt.executeUpdate("DROP TABLE chatHistoryOld");
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+}
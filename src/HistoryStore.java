@@ -0,0 +1,60 @@
+package server;
+
+import java.util.List;
+
+/**
+ * Where rooms keep every msg they were sent, the recent history in memory is only the tail of it.
+ * A room appends each msg once it has its id and reads its latest msgs when it opens and older pages when a client
+ * asks for them. The calls for one room come from that room's executor, different rooms call at the same time.
+ */
+public interface HistoryStore {
+    /**
+     * stores a msg, the msg has its id and timestamp set. Never blocks, a store that can't take the msg right now
+     * turns it down
+     * @param room
+     * @param msg
+     * @return whether the msg was taken, a msg that wasn't has to be appended again after whenReady ran its task
+     */
+    boolean append(String room, WebSocketMsg msg);
+
+    /**
+     * runs the task once the store takes msgs again after turning one down, right away if it does now
+     * @param task may run on the store's own thread
+     */
+    default void whenReady(Runnable task) {
+        task.run();
+    }
+
+    /**
+     * runs the task once every msg appended before this call can be read back, used before a room reads its history
+     * @param task may run on the store's own thread
+     */
+    void sync(Runnable task);
+
+    /**
+     * @param room
+     * @param count most msgs to read
+     * @return the room's latest msgs, oldest first
+     */
+    List<WebSocketMsg> latest(String room, int count);
+
+    /**
+     * @param room
+     * @param before
+     * @param count most msgs to read
+     * @return the room's msgs older than the given id, oldest first
+     */
+    List<WebSocketMsg> before(String room, long before, int count);
+
+    /**
+     * lets go of whatever the store holds for a room, called when the room closes
+     * @param room
+     */
+    default void release(String room) {
+    }
+
+    /**
+     * writes out everything still pending and closes the store
+     */
+    void close();
+}
@@ -0,0 +1,304 @@
+package server;
+
+import java.sql.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes chat msgs to the history database behind the rooms' backs.
+ *
+ * Rooms only put msgs on a bounded queue. A single writer thread with its own connection takes them off in batches
+ * and inserts each batch in one transaction with a reused prepared statement, so a msg is broadcast without waiting
+ * for the disk and many msgs share one commit. A batch is written once it is full or the flush interval passed.
+ * The database is put in WAL mode so rooms can keep reading history while the writer commits.
+ *
+ * Nothing a room calls blocks, rooms share their executor with other rooms and connections. When the queue is full a
+ * msg is turned down and the room asks to be told once the queue is down to half, it stops reading its clients until
+ * then, which pushes back on them instead of growing the queue without bound. Waiting for msgs to be written is done
+ * the same way, the task given is run by the writer once they are.
+ */
+public class HistoryWriter implements Runnable {
+    //a msg waiting to be written and its room
+    private static class Entry {
+        private String room;
+        private WebSocketMsg msg;
+
+        private Entry(String room, WebSocketMsg msg) {
+            this.room = room;
+            this.msg = msg;
+        }
+    }
+
+    //a task waiting for the writer to have written a number of msgs
+    private static class Waiter {
+        private long target;
+        private Runnable task;
+
+        private Waiter(long target, Runnable task) {
+            this.target = target;
+            this.task = task;
+        }
+    }
+
+    //marks the end of the queue on shutdown
+    private static final Entry END = new Entry(null, null);
+    private static final String INSERT = "INSERT INTO chatHistory(room, id, ts, user, msg) VALUES(?, ?, ?, ?, ?)";
+
+    private Connection connection;
+    private BlockingQueue<Entry> queue;
+    private int capacity;
+    private int batchSize;
+    private long flushMillis;
+    private Thread thread;
+
+    //number of msgs added and number of msgs written, guarded by this
+    private long added;
+    private long written;
+    //tasks waiting for msgs to be written in the order they were added, and whether the writer stopped, guarded by this
+    private ArrayDeque<Waiter> waiters;
+    private boolean stopped;
+    //tasks of rooms that had a msg turned down, run once the queue is down to half
+    private ConcurrentLinkedQueue<Runnable> blocked;
+
+    /**
+     * constructor, opens the writer's own connection to the database
+     * @param url jdbc url of the database
+     * @param capacity most msgs waiting to be written
+     * @param batchSize most msgs written in one transaction
+     * @param flushMillis longest a msg waits before its batch is written
+     * @throws SQLException
+     */
+    public HistoryWriter(String url, int capacity, int batchSize, long flushMillis) throws SQLException {
+        connection = DriverManager.getConnection(url);
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("PRAGMA journal_mode=WAL");
+            stmt.execute("PRAGMA synchronous=NORMAL");
+        }
+        connection.setAutoCommit(false);
+
+        queue = new ArrayBlockingQueue<>(capacity);
+        this.capacity = capacity;
+        waiters = new ArrayDeque<>();
+        blocked = new ConcurrentLinkedQueue<>();
+        this.batchSize = batchSize;
+        this.flushMillis = flushMillis;
+        thread = new Thread(this, "history-writer");
+    }
+
+    /**
+     * starts the writer thread
+     */
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * queues a msg to be written unless the queue is full
+     * @param room
+     * @param msg
+     * @return whether the msg was queued, see whenReady
+     */
+    public synchronized boolean offer(String room, WebSocketMsg msg) {
+        if (!queue.offer(new Entry(room, msg))) {
+            return false;
+        }
+        added++;
+        return true;
+    }
+
+    /**
+     * runs the task once the queue is down to half, right away if it is now, used after a msg was turned down
+     * @param task run on the writer thread or the calling one
+     */
+    public void whenReady(Runnable task) {
+        blocked.add(task);
+        //the writer may have emptied the queue before the task was added
+        if (hasRoom()) {
+            runBlocked();
+        }
+    }
+
+    /**
+     * runs the task once every msg added before this call has been written, used before a room reads its history
+     * @param task run on the writer thread or the calling one
+     */
+    public void sync(Runnable task) {
+        synchronized (this) {
+            if (written < added && !stopped) {
+                waiters.add(new Waiter(added, task));
+                return;
+            }
+        }
+        task.run();
+    }
+
+    /**
+     * writes everything still queued and stops the writer
+     */
+    public void close() {
+        try {
+            queue.put(END);
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * takes msgs off the queue in batches until the end marker comes through
+     */
+    @Override
+    public void run() {
+        List<Entry> batch = new ArrayList<>(batchSize);
+        try (PreparedStatement insert = connection.prepareStatement(INSERT)) {
+            boolean open = true;
+            while (open) {
+                Entry first = queue.take();
+                if (first == END) {
+                    break;
+                }
+                batch.add(first);
+
+                //fill the batch until it's full or the oldest msg in it waited long enough
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushMillis);
+                while (batch.size() < batchSize) {
+                    Entry next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    if (next == END) {
+                        open = false;
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                write(insert, batch);
+                batch.clear();
+                if (!blocked.isEmpty() && hasRoom()) {
+                    runBlocked();
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+            //nothing will be written anymore, whoever waits on the writer is let go
+            List<Waiter> left;
+            synchronized (this) {
+                stopped = true;
+                left = new ArrayList<>(waiters);
+                waiters.clear();
+            }
+            for (Waiter waiter : left) {
+                waiter.task.run();
+            }
+            runBlocked();
+        }
+    }
+
+    /**
+     * @return whether the queue is down to half
+     */
+    private boolean hasRoom() {
+        return queue.remainingCapacity() >= capacity / 2;
+    }
+
+    /**
+     * runs the tasks of rooms that had a msg turned down, each only once
+     */
+    private void runBlocked() {
+        Runnable task;
+        while ((task = blocked.poll()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * inserts a batch in one transaction
+     * @param insert
+     * @param batch
+     */
+    private void write(PreparedStatement insert, List<Entry> batch) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            for (Entry entry : batch) {
+                bind(insert, entry);
+                insert.addBatch();
+            }
+            insert.executeBatch();
+            connection.commit();
+            Metrics.DB_INSERT.observe(System.nanoTime() - start);
+            Metrics.DB_ROWS.add(batch.size());
+        } catch (SQLException e) {
+            //one bad row fails the whole batch, which holds other rooms' msgs too, so the rows are tried one by one
+            e.printStackTrace();
+            insert.clearBatch();
+            connection.rollback();
+            writeEach(batch);
+        }
+
+        List<Runnable> done = new ArrayList<>();
+        synchronized (this) {
+            written += batch.size();
+            while (!waiters.isEmpty() && waiters.peek().target <= written) {
+                done.add(waiters.poll().task);
+            }
+        }
+        for (Runnable task : done) {
+            task.run();
+        }
+    }
+
+    /**
+     * Inserts the rows of a batch that failed one at a time, still in one transaction. SQLite only undoes the statement
+     * that failed, so a row that fails again is left out and counted as lost and the rest of the batch is kept.
+     * The rows go through a statement of their own, the driver doesn't clear the failed batch's values.
+     * @param batch
+     */
+    private void writeEach(List<Entry> batch) throws SQLException {
+        int lost = 0;
+        try (PreparedStatement insert = connection.prepareStatement(INSERT)) {
+            for (Entry entry : batch) {
+                bind(insert, entry);
+                try {
+                    insert.executeUpdate();
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                    lost++;
+                }
+            }
+        }
+        try {
+            connection.commit();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            connection.rollback();
+            lost = batch.size();
+        }
+        Metrics.DB_ROWS.add(batch.size() - lost);
+        Metrics.DB_LOST_ROWS.add(lost);
+    }
+
+    /**
+     * sets the insert's parameters to a msg's row
+     */
+    private static void bind(PreparedStatement insert, Entry entry) throws SQLException {
+        insert.setString(1, entry.room);
+        insert.setLong(2, entry.msg.getId());
+        insert.setLong(3, entry.msg.getTimestamp());
+        insert.setString(4, entry.msg.getUserName());
+        insert.setString(5, entry.msg.getMsg());
+    }
+}
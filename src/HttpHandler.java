@@ -0,0 +1,227 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import server.TimingWheel.Timeout;
+
+/**
+ * Handles a connection until it has been answered.
+ * Reads requests without blocking, builds the responses and writes them out as the socket allows. A kept alive
+ * connection is answered request after request, pipelined requests in the order they arrived, until the client asks
+ * to close, the request limit is reached or it sits idle for too long. A websocket handshake turns the connection into
+ * a client waiting to join a room.
+ */
+public class HttpHandler implements Handler {
+    //largest request header we accept
+    static final int MAX_HEADER = 16 * 1024;
+
+    private Server server;
+    private EventLoop loop;
+    private SocketChannel channel;
+
+    //requests read so far and not answered yet
+    private ByteBuffer header;
+    //response waiting to be written
+    private ByteBuffer[] response;
+    private Request req;
+    private boolean keepAlive;
+    //whether the websocket handshake negotiated permessage-deflate and the binary subprotocol
+    private boolean deflate;
+    private boolean binary;
+
+    //file sent after the response's head and how much of it has been sent
+    private FileChannel body;
+    private long bodyPos;
+
+    //requests answered on this connection and when it was last used
+    private int requests;
+    private long lastActive;
+    //closes the connection once it sat idle too long, on the loop's wheel
+    private Timeout idle;
+
+    public HttpHandler(Server server, EventLoop loop, SocketChannel channel) {
+        this.server = server;
+        this.loop = loop;
+        this.channel = channel;
+        header = ByteBuffer.allocate(1024);
+        lastActive = System.currentTimeMillis();
+        //created on the loop's thread, the connection is registered right after
+        idle = new Timeout(this::checkIdle);
+        loop.getWheel().schedule(idle, Config.HTTP_IDLE_MILLIS);
+    }
+
+    @Override
+    public void handle(SelectionKey key) throws IOException {
+        lastActive = System.currentTimeMillis();
+        if (response != null) {
+            if (key.isWritable() && writeResponse(key)) {
+                next(key);
+            }
+            return;
+        }
+
+        if (key.isReadable()) {
+            if (!header.hasRemaining()) {
+                header = grow(header);
+            }
+            if (channel.read(header) < 0) {
+                close();
+                return;
+            }
+            next(key);
+        }
+    }
+
+    /**
+     * Answers every complete request that has been read, in order, until one of them can't be written right away or
+     * ends the connection. Waits for more bytes once no complete request is left.
+     * @param key
+     */
+    private void next(SelectionKey key) throws IOException {
+        while (response == null) {
+            int end = headerEnd(header);
+            if (end < 0 && (header.hasRemaining() || header.capacity() < MAX_HEADER)) {
+                key.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+
+            respond(end);
+            if (!writeResponse(key)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * parses the request and builds the response, an overlong header is answered as a bad request
+     * @param end index just past the header or -1 if it didn't fit
+     */
+    private void respond(int end) throws IOException {
+        req = new Request(header.array(), end);
+        requests++;
+
+        Response res = new Response(req, server.getFileCache(), requests < Config.HTTP_MAX_REQUESTS);
+        try {
+            res.build();
+        } catch (BadRequestException e) {
+            //bad request response has been built, close once it's out
+        }
+        response = res.getHead();
+        keepAlive = res.isKeepAlive();
+        deflate = res.isDeflate();
+        binary = res.isBinary();
+        if (res.getBody() != null) {
+            body = FileChannel.open(res.getBody().toPath(), StandardOpenOption.READ);
+            bodyPos = 0;
+        }
+
+        //drop the request, whatever follows it is the next request or a websocket client's first frame
+        header.flip();
+        header.position(Math.max(end, 0));
+        header.compact();
+    }
+
+    /**
+     * writes as much of the response as the socket takes, waiting for OP_WRITE for the rest
+     * a file that wasn't cached is sent from disk with transferTo once the head is out
+     * @param key
+     * @return true once the whole response has been written and the connection waits for the next request
+     */
+    private boolean writeResponse(SelectionKey key) throws IOException {
+        ByteBuffer last = response[response.length - 1];
+        channel.write(response);
+        if (!last.hasRemaining() && body != null) {
+            bodyPos += body.transferTo(bodyPos, body.size() - bodyPos, channel);
+            if (bodyPos == body.size()) {
+                body.close();
+                body = null;
+            }
+        }
+        if (last.hasRemaining() || body != null) {
+            key.interestOps(SelectionKey.OP_WRITE);
+            return false;
+        }
+
+        if (!keepAlive) {
+            finish(key);
+            return false;
+        }
+        response = null;
+        return true;
+    }
+
+    /**
+     * ends the connection after its last response
+     * @param key
+     */
+    private void finish(SelectionKey key) throws IOException {
+        idle.cancel();
+        if (req.isWebSocket()) {
+            //hand the connection to a client which waits for the join msg
+            header.flip();
+            Client client = new Client(channel);
+            client.setDeflate(deflate);
+            client.setBinary(binary);
+            client.awaitJoin(server, loop, key, header.hasRemaining() ? header : null);
+        } else {
+            close();
+        }
+    }
+
+    /**
+     * @param header heap buffer the request is read into, in write mode
+     * @return index just past the blank line ending the header or -1 if it hasn't been read yet
+     */
+    static int headerEnd(ByteBuffer header) {
+        byte[] buf = header.array();
+        for (int i = 3; i < header.position(); i++) {
+            if (buf[i] == '\n' && buf[i - 1] == '\r' && buf[i - 2] == '\n' && buf[i - 3] == '\r') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * doubles the header buffer up to the max header size
+     * @param header full buffer in write mode
+     * @return the bigger buffer with the same content
+     */
+    static ByteBuffer grow(ByteBuffer header) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.min(header.capacity() * 2, MAX_HEADER));
+        header.flip();
+        bigger.put(header);
+        return bigger;
+    }
+
+    /**
+     * Runs when the idle timeout comes due. Activity doesn't move the timeout, which would cost a wheel operation per
+     * read, so the connection is only closed if it really sat idle and otherwise checked again when it could be.
+     */
+    private void checkIdle() {
+        long quiet = System.currentTimeMillis() - lastActive;
+        if (quiet >= Config.HTTP_IDLE_MILLIS) {
+            Metrics.IDLE_CLOSES.increment();
+            close();
+        } else {
+            loop.getWheel().schedule(idle, Config.HTTP_IDLE_MILLIS - quiet);
+        }
+    }
+
+    @Override
+    public void close() {
+        idle.cancel();
+        try {
+            if (body != null) {
+                body.close();
+            }
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
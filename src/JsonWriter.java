@@ -0,0 +1,207 @@
+package server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Streaming JSON writer that encodes straight to UTF-8 bytes.
+ * Strings are escaped as they are written, quotes, backslashes and control characters can't break out of a value,
+ * and U+2028/U+2029 are escaped too so the output is also valid JavaScript. Every thread reuses one writer and its
+ * buffer, so encoding a msg doesn't allocate anything but the frame it ends up in.
+ */
+public class JsonWriter {
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private static final ThreadLocal<JsonWriter> WRITER = ThreadLocal.withInitial(JsonWriter::new);
+    //a buffer grown past this for one large msg isn't kept for the next
+    private static final int KEEP = 64 * 1024;
+
+    private ByteBuffer buf;
+    //whether the next member needs a comma before it
+    private boolean comma;
+
+    private JsonWriter() {
+        buf = ByteBuffer.allocate(1024);
+    }
+
+    /**
+     * @return the thread's writer, emptied
+     */
+    public static JsonWriter get() {
+        JsonWriter writer = WRITER.get();
+        if (writer.buf.capacity() > KEEP) {
+            writer.buf = ByteBuffer.allocate(1024);
+        }
+        writer.buf.clear();
+        writer.comma = false;
+        return writer;
+    }
+
+    public JsonWriter beginObject() {
+        //an object following another in an array
+        if (comma) {
+            ensure(1);
+            buf.put((byte) ',');
+        }
+        ensure(1);
+        buf.put((byte) '{');
+        comma = false;
+        return this;
+    }
+
+    public JsonWriter endObject() {
+        ensure(1);
+        buf.put((byte) '}');
+        comma = true;
+        return this;
+    }
+
+    /**
+     * starts a member whose value is an array, its elements are the objects written until endArray
+     * @param name
+     */
+    public JsonWriter beginArray(String name) {
+        name(name);
+        ensure(1);
+        buf.put((byte) '[');
+        comma = false;
+        return this;
+    }
+
+    /**
+     * writes a string element of an array
+     * @param value
+     */
+    public JsonWriter value(String value) {
+        if (comma) {
+            ensure(1);
+            buf.put((byte) ',');
+        }
+        string(value);
+        comma = true;
+        return this;
+    }
+
+    public JsonWriter endArray() {
+        ensure(1);
+        buf.put((byte) ']');
+        comma = true;
+        return this;
+    }
+
+    /**
+     * writes a member with a number value
+     * @param name
+     * @param value
+     */
+    public JsonWriter field(String name, long value) {
+        name(name);
+        String digits = Long.toString(value);
+        ensure(digits.length());
+        for (int i = 0; i < digits.length(); i++) {
+            buf.put((byte) digits.charAt(i));
+        }
+        comma = true;
+        return this;
+    }
+
+    /**
+     * writes a member with a string value
+     * @param name
+     * @param value
+     */
+    public JsonWriter field(String name, String value) {
+        name(name);
+        string(value);
+        comma = true;
+        return this;
+    }
+
+    /**
+     * @return the written bytes, in read mode, valid until the thread's writer is used again
+     */
+    public ByteBuffer buffer() {
+        ByteBuffer out = buf.duplicate();
+        out.flip();
+        return out;
+    }
+
+    private void name(String name) {
+        if (comma) {
+            ensure(1);
+            buf.put((byte) ',');
+        }
+        string(name);
+        ensure(1);
+        buf.put((byte) ':');
+    }
+
+    /**
+     * writes a quoted, escaped string, chars are encoded to UTF-8 as they're written
+     */
+    private void string(String s) {
+        //worst case is six bytes per char for \\u escapes, checked once instead of per char
+        ensure(s.length() * 6 + 2);
+        buf.put((byte) '"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                buf.put((byte) '\\').put((byte) c);
+            } else if (c < 0x20) {
+                switch (c) {
+                    case '\n':
+                        buf.put((byte) '\\').put((byte) 'n');
+                        break;
+                    case '\r':
+                        buf.put((byte) '\\').put((byte) 'r');
+                        break;
+                    case '\t':
+                        buf.put((byte) '\\').put((byte) 't');
+                        break;
+                    case '\b':
+                        buf.put((byte) '\\').put((byte) 'b');
+                        break;
+                    case '\f':
+                        buf.put((byte) '\\').put((byte) 'f');
+                        break;
+                    default:
+                        unicodeEscape(c);
+                }
+            } else if (c < 0x80) {
+                buf.put((byte) c);
+            } else if (c < 0x800) {
+                buf.put((byte) (0xC0 | c >> 6)).put((byte) (0x80 | c & 0x3F));
+            } else if (c == 0x2028 || c == 0x2029) {
+                unicodeEscape(c);
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf.put((byte) (0xF0 | cp >> 18)).put((byte) (0x80 | cp >> 12 & 0x3F))
+                        .put((byte) (0x80 | cp >> 6 & 0x3F)).put((byte) (0x80 | cp & 0x3F));
+            } else {
+                if (Character.isSurrogate(c)) {
+                    //a lone surrogate isn't valid UTF-8, it becomes the replacement char
+                    c = '\uFFFD';
+                }
+                buf.put((byte) (0xE0 | c >> 12)).put((byte) (0x80 | c >> 6 & 0x3F)).put((byte) (0x80 | c & 0x3F));
+            }
+        }
+        buf.put((byte) '"');
+    }
+
+    private void unicodeEscape(char c) {
+        buf.put((byte) '\\').put((byte) 'u')
+                .put(HEX[c >> 12]).put(HEX[c >> 8 & 0xF]).put(HEX[c >> 4 & 0xF]).put(HEX[c & 0xF]);
+    }
+
+    /**
+     * grows the buffer so at least n more bytes fit
+     */
+    private void ensure(int n) {
+        if (buf.remaining() < n) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + n));
+            buf.flip();
+            bigger.put(buf);
+            buf = bigger;
+        }
+    }
+}
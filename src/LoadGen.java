@@ -0,0 +1,562 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Load generator for a running server.
+ * Opens websocket clients spread over a number of rooms, speaking the same text protocol as the web client
+ * ("join &lt;room&gt;", then "&lt;user&gt; &lt;msg&gt;"), sends msgs at a fixed total rate and measures how long
+ * each msg takes to reach every client of its room. Prints connection setup times, throughput and fan-out latency
+ * percentiles.
+ *
+ * Every msg carries the time it was due to be sent rather than the time it actually went out, so a generator that
+ * falls behind shows up in the latencies instead of hiding them.
+ *
+ * java -cp ChatServer.jar server.LoadGen -clients 1000 -rooms 10 -rate 200 -seconds 30
+ */
+public class LoadGen {
+    //settings, see usage
+    private String host = "localhost";
+    private int port = 8080;
+    private int clients = 100;
+    private int rooms = 10;
+    private double rate = 100;
+    private int seconds = 30;
+    private int warmup = 5;
+    private int size = 64;
+    private int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private double connectRate = 500;
+
+    //marks this run's msgs, the rooms replay msgs of earlier runs when a client joins
+    private final byte[] marker = ("lg" + Integer.toHexString(ThreadLocalRandom.current().nextInt()) + " ")
+            .getBytes(StandardCharsets.US_ASCII);
+
+    //when the workers start sending, and the window msgs are measured in, in nanos
+    private volatile long sendFrom = Long.MAX_VALUE;
+    private volatile long measureFrom = Long.MAX_VALUE;
+    private volatile long measureUntil = Long.MAX_VALUE;
+    private volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception {
+        LoadGen gen = new LoadGen();
+        if (!gen.parse(args)) {
+            System.err.println("usage: server.LoadGen [-host localhost] [-port 8080] [-clients 100] [-rooms 10]"
+                    + " [-rate 100 msgs/s in total] [-seconds 30] [-warmup 5] [-size 64 bytes per msg]"
+                    + " [-threads n] [-connectRate 500 connections/s]");
+            System.exit(1);
+        }
+        gen.run();
+    }
+
+    private boolean parse(String[] args) {
+        try {
+            for (int i = 0; i < args.length; i += 2) {
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "-host": host = value; break;
+                    case "-port": port = Integer.parseInt(value); break;
+                    case "-clients": clients = Integer.parseInt(value); break;
+                    case "-rooms": rooms = Integer.parseInt(value); break;
+                    case "-rate": rate = Double.parseDouble(value); break;
+                    case "-seconds": seconds = Integer.parseInt(value); break;
+                    case "-warmup": warmup = Integer.parseInt(value); break;
+                    case "-size": size = Integer.parseInt(value); break;
+                    case "-threads": threads = Integer.parseInt(value); break;
+                    case "-connectRate": connectRate = Double.parseDouble(value); break;
+                    default: return false;
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return false;
+        }
+        return clients > 0 && rooms > 0 && rate > 0 && threads > 0 && connectRate > 0;
+    }
+
+    /**
+     * connects every client, sends for the warmup and measured seconds, then prints the results
+     */
+    private void run() throws IOException, InterruptedException {
+        threads = Math.min(threads, clients);
+        Worker[] workers = new Worker[threads];
+        Thread[] workerThreads = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker();
+        }
+        for (int i = 0; i < clients; i++) {
+            workers[i % threads].add(new Conn(i));
+        }
+        for (int i = 0; i < threads; i++) {
+            workerThreads[i] = new Thread(workers[i], "loadgen-" + i);
+            workerThreads[i].start();
+        }
+
+        //wait for every client to join or give up on the ones that didn't make it in time
+        long start = System.nanoTime();
+        long deadline = start + (long) ((clients / connectRate + 10) * 1e9);
+        while (System.nanoTime() < deadline && joined(workers) + failed(workers) < clients) {
+            Thread.sleep(100);
+        }
+        long setup = System.nanoTime() - start;
+
+        System.out.printf("connections: %d joined, %d failed, %d pending after %.1f s%n", joined(workers),
+                failed(workers), clients - joined(workers) - failed(workers), setup / 1e9);
+
+        long now = System.nanoTime();
+        measureFrom = now + warmup * 1_000_000_000L;
+        measureUntil = measureFrom + seconds * 1_000_000_000L;
+        sendFrom = now;
+        System.out.printf("sending %.0f msgs/s to %d rooms, %d s warmup, %d s measured%n", rate, rooms, warmup,
+                seconds);
+
+        //msgs still on their way when sending stops get a moment to arrive
+        Thread.sleep((warmup + seconds) * 1000L + 2000);
+        running = false;
+        for (Thread thread : workerThreads) {
+            thread.join();
+        }
+
+        Histogram setupTimes = new Histogram();
+        Histogram latency = new Histogram();
+        long sent = 0, delivered = 0;
+        for (Worker worker : workers) {
+            setupTimes.add(worker.setup);
+            latency.add(worker.latency);
+            sent += worker.sent;
+            delivered += worker.delivered;
+        }
+        System.out.printf("connection setup: p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                setupTimes.percentile(0.5) / 1e3, setupTimes.percentile(0.99) / 1e3, setupTimes.max() / 1e3);
+        System.out.printf("throughput: %.1f msgs/s sent, %.1f deliveries/s, fan-out %.1f per msg%n",
+                sent / (double) seconds, delivered / (double) seconds, sent == 0 ? 0 : delivered / (double) sent);
+        System.out.printf("fan-out latency: p50 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms%n",
+                latency.percentile(0.5) / 1e3, latency.percentile(0.99) / 1e3, latency.percentile(0.999) / 1e3,
+                latency.max() / 1e3);
+    }
+
+    private static int joined(Worker[] workers) {
+        int n = 0;
+        for (Worker worker : workers) {
+            n += worker.joined;
+        }
+        return n;
+    }
+
+    private static int failed(Worker[] workers) {
+        int n = 0;
+        for (Worker worker : workers) {
+            n += worker.failed;
+        }
+        return n;
+    }
+
+    /**
+     * One simulated client.
+     */
+    private class Conn {
+        private int index;
+        private SocketChannel channel;
+        private SelectionKey key;
+        //when the connection was started, in nanos
+        private long connectStart;
+        private boolean open, failed;
+
+        private ByteBuffer in = ByteBuffer.allocate(16 * 1024);
+        private ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+
+        Conn(int index) {
+            this.index = index;
+        }
+
+        /**
+         * @return the client's room
+         */
+        int room() {
+            return index % rooms;
+        }
+    }
+
+    /**
+     * Runs a share of the clients on its own selector, sending its share of the msgs.
+     */
+    private class Worker implements Runnable {
+        private Selector selector;
+        private List<Conn> conns = new ArrayList<>();
+        //clients that have joined and take turns sending
+        private List<Conn> ready = new ArrayList<>();
+        private int nextConn, nextSender;
+
+        //recorded by the worker's thread, read once it has stopped
+        private Histogram setup = new Histogram();
+        private Histogram latency = new Histogram();
+        private volatile int joined, failed;
+        private long sent, delivered;
+
+        Worker() throws IOException {
+            selector = Selector.open();
+        }
+
+        void add(Conn conn) {
+            conns.add(conn);
+        }
+
+        @Override
+        public void run() {
+            long connectInterval = (long) (1e9 * threads / connectRate);
+            long sendInterval = (long) (1e9 * threads / rate);
+            long nextConnect = System.nanoTime();
+            long nextSend = 0;
+
+            while (running) {
+                long now = System.nanoTime();
+                while (nextConn < conns.size() && now >= nextConnect) {
+                    connect(conns.get(nextConn++), now);
+                    nextConnect += connectInterval;
+                }
+
+                if (nextSend == 0 && now >= sendFrom) {
+                    nextSend = sendFrom;
+                }
+                while (nextSend != 0 && now >= nextSend && nextSend < measureUntil && !ready.isEmpty()) {
+                    send(ready.get(nextSender++ % ready.size()), nextSend);
+                    nextSend += sendInterval;
+                }
+
+                long wake = nextConn < conns.size() ? nextConnect : Long.MAX_VALUE;
+                if (nextSend != 0 && nextSend < measureUntil) {
+                    wake = Math.min(wake, nextSend);
+                }
+                try {
+                    long millis = Math.min(100, Math.max(0, (wake - System.nanoTime()) / 1_000_000));
+                    if (millis == 0) {
+                        selector.selectNow();
+                    } else {
+                        selector.select(millis);
+                    }
+                    Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+                    while (iter.hasNext()) {
+                        SelectionKey key = iter.next();
+                        iter.remove();
+                        Conn conn = (Conn) key.attachment();
+                        try {
+                            handle(conn);
+                        } catch (IOException e) {
+                            fail(conn);
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+            }
+
+            for (Conn conn : conns) {
+                close(conn);
+            }
+        }
+
+        private void connect(Conn conn, long now) {
+            try {
+                conn.connectStart = now;
+                conn.channel = SocketChannel.open();
+                conn.channel.configureBlocking(false);
+                conn.key = conn.channel.register(selector, SelectionKey.OP_CONNECT, conn);
+                if (conn.channel.connect(new InetSocketAddress(host, port))) {
+                    handshake(conn);
+                }
+            } catch (IOException e) {
+                fail(conn);
+            }
+        }
+
+        private void handle(Conn conn) throws IOException {
+            SelectionKey key = conn.key;
+            if (key.isConnectable()) {
+                conn.channel.finishConnect();
+                handshake(conn);
+                return;
+            }
+            if (key.isWritable()) {
+                flush(conn);
+            }
+            if (key.isReadable()) {
+                if (!conn.in.hasRemaining()) {
+                    ByteBuffer bigger = ByteBuffer.allocate(conn.in.capacity() * 2);
+                    conn.in.flip();
+                    bigger.put(conn.in);
+                    conn.in = bigger;
+                }
+                if (conn.channel.read(conn.in) < 0) {
+                    throw new IOException("closed by server");
+                }
+                conn.in.flip();
+                if (!conn.open) {
+                    readHandshake(conn);
+                }
+                if (conn.open) {
+                    readFrames(conn);
+                }
+                conn.in.compact();
+            }
+        }
+
+        private void handshake(Conn conn) throws IOException {
+            byte[] nonce = new byte[16];
+            ThreadLocalRandom.current().nextBytes(nonce);
+            String request = "GET / HTTP/1.1\r\n"
+                    + "Host: " + host + ":" + port + "\r\n"
+                    + "Upgrade: websocket\r\n"
+                    + "Connection: Upgrade\r\n"
+                    + "Sec-WebSocket-Key: " + Base64.getEncoder().encodeToString(nonce) + "\r\n"
+                    + "Sec-WebSocket-Version: 13\r\n"
+                    + "\r\n";
+            conn.key.interestOps(SelectionKey.OP_READ);
+            queue(conn, ByteBuffer.wrap(request.getBytes(StandardCharsets.US_ASCII)));
+        }
+
+        /**
+         * waits for the end of the 101 response, then joins the client's room
+         * @param conn
+         */
+        private void readHandshake(Conn conn) throws IOException {
+            ByteBuffer in = conn.in;
+            for (int i = in.position() + 3; i < in.limit(); i++) {
+                if (in.get(i) == '\n' && in.get(i - 1) == '\r' && in.get(i - 2) == '\n' && in.get(i - 3) == '\r') {
+                    byte[] status = new byte[Math.min(12, i)];
+                    in.get(status);
+                    if (!new String(status, StandardCharsets.US_ASCII).startsWith("HTTP/1.1 101")) {
+                        throw new IOException("handshake refused");
+                    }
+                    in.position(i + 1);
+                    conn.open = true;
+                    setup.record((System.nanoTime() - conn.connectStart) / 1000);
+                    queue(conn, frame("join room" + conn.room()));
+                    ready.add(conn);
+                    joined++;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * reads every whole frame in the client's buffer and records the latency of this run's msgs
+         * @param conn
+         */
+        private void readFrames(Conn conn) {
+            ByteBuffer in = conn.in;
+            while (in.remaining() >= 2) {
+                int start = in.position();
+                int length = in.get(start + 1) & 0x7f;
+                int header = 2;
+                if (length == 126) {
+                    if (in.remaining() < 4) {
+                        return;
+                    }
+                    length = in.getShort(start + 2) & 0xffff;
+                    header = 4;
+                } else if (length == 127) {
+                    if (in.remaining() < 10) {
+                        return;
+                    }
+                    length = (int) in.getLong(start + 2);
+                    header = 10;
+                }
+                if (in.remaining() < header + length) {
+                    return;
+                }
+                received(in, start + header, start + header + length);
+                in.position(start + header + length);
+            }
+        }
+
+        /**
+         * finds this run's marker in a msg, followed by the time the msg was due to be sent
+         */
+        private void received(ByteBuffer in, int from, int to) {
+            long now = System.nanoTime();
+            outer:
+            for (int i = from; i <= to - marker.length; i++) {
+                for (int j = 0; j < marker.length; j++) {
+                    if (in.get(i + j) != marker[j]) {
+                        continue outer;
+                    }
+                }
+                long sentAt = 0;
+                for (int k = i + marker.length; k < to && in.get(k) >= '0' && in.get(k) <= '9'; k++) {
+                    sentAt = sentAt * 10 + (in.get(k) - '0');
+                }
+                if (sentAt >= measureFrom && sentAt < measureUntil) {
+                    delivered++;
+                    latency.record((now - sentAt) / 1000);
+                }
+                return;
+            }
+        }
+
+        /**
+         * sends a msg from the client to its room
+         * @param conn
+         * @param due when the msg was due, in nanos
+         */
+        private void send(Conn conn, long due) {
+            StringBuilder text = new StringBuilder("u").append(conn.index).append(' ')
+                    .append(new String(marker, StandardCharsets.US_ASCII)).append(due).append(' ');
+            while (text.length() < size) {
+                text.append('x');
+            }
+            if (due >= measureFrom) {
+                sent++;
+            }
+            try {
+                queue(conn, frame(text.toString()));
+            } catch (IOException e) {
+                fail(conn);
+            }
+        }
+
+        private void queue(Conn conn, ByteBuffer buf) throws IOException {
+            conn.out.offer(buf);
+            if (conn.out.size() == 1) {
+                flush(conn);
+            }
+        }
+
+        private void flush(Conn conn) throws IOException {
+            ByteBuffer head;
+            while ((head = conn.out.peek()) != null) {
+                conn.channel.write(head);
+                if (head.hasRemaining()) {
+                    conn.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                conn.out.poll();
+            }
+            conn.key.interestOps(SelectionKey.OP_READ);
+        }
+
+        private void fail(Conn conn) {
+            if (conn.open) {
+                ready.remove(conn);
+                joined--;
+                conn.open = false;
+            }
+            if (!conn.failed) {
+                conn.failed = true;
+                failed++;
+            }
+            close(conn);
+        }
+
+        private void close(Conn conn) {
+            try {
+                if (conn.channel != null) {
+                    conn.channel.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @param text
+     * @return a masked text frame as a client sends it
+     */
+    static ByteBuffer frame(String text) {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        byte[] mask = new byte[4];
+        ThreadLocalRandom.current().nextBytes(mask);
+        int header = payload.length < 126 ? 2 : payload.length < 65536 ? 4 : 10;
+        ByteBuffer buf = ByteBuffer.allocate(header + 4 + payload.length);
+        buf.put((byte) 0x81);
+        if (payload.length < 126) {
+            buf.put((byte) (0x80 | payload.length));
+        } else if (payload.length < 65536) {
+            buf.put((byte) (0x80 | 126));
+            buf.putShort((short) payload.length);
+        } else {
+            buf.put((byte) (0x80 | 127));
+            buf.putLong(payload.length);
+        }
+        buf.put(mask);
+        for (int i = 0; i < payload.length; i++) {
+            buf.put((byte) (payload[i] ^ mask[i & 3]));
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Counts of recorded values in buckets a few percent wide, values are micros.
+     */
+    static class Histogram {
+        //values below this get a bucket each, above it every doubling is split into SUB buckets
+        private static final int SUB = 64;
+        private long[] counts = new long[SUB * 48];
+        private long count;
+        private long max;
+
+        void record(long value) {
+            value = Math.max(0, value);
+            counts[index(value)]++;
+            count++;
+            max = Math.max(max, value);
+        }
+
+        void add(Histogram other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            count += other.count;
+            max = Math.max(max, other.max);
+        }
+
+        /**
+         * @param q between 0 and 1
+         * @return the upper bound of the bucket holding the q-th value, 0 if nothing was recorded
+         */
+        long percentile(double q) {
+            long rank = (long) Math.ceil(q * count);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(max, upper(i));
+                }
+            }
+            return max;
+        }
+
+        long max() {
+            return max;
+        }
+
+        private static int index(long value) {
+            if (value < SUB) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - 5;
+            return SUB + (shift - 1) * (SUB / 2) + (int) (value >> shift) - SUB / 2;
+        }
+
+        private static long upper(int index) {
+            if (index < SUB) {
+                return index;
+            }
+            int shift = (index - SUB) / (SUB / 2) + 1;
+            long sub = (index - SUB) % (SUB / 2) + SUB / 2;
+            return ((sub + 1) << shift) - 1;
+        }
+    }
+}
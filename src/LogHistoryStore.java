@@ -0,0 +1,148 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * History kept in a memory-mapped append-only log per room, see RoomLog.
+ * Appending is a copy into the mapping on the room's own executor, nothing is queued for another thread, and
+ * everything appended can be read back right away. A process crash loses nothing that was appended, the OS writes the
+ * mapped pages out on its own. Segments are forced to disk when they are sealed and when the room or the server
+ * closes, what a machine crash tears off in between is dropped when the log is opened again.
+ *
+ * Each room's log is only used by one room at a time, the locks just hand it over safely when a room closes and opens
+ * again on another executor. A closed room may let go of its log after a room of the same name opened again, a log
+ * that was let go of is never used again, the next call opens the room's log anew.
+ */
+public class LogHistoryStore implements HistoryStore {
+    //directory holding a directory per room
+    private File dir;
+    private long segmentBytes;
+    private long retentionBytes;
+    private long retentionMillis;
+
+    //logs of the rooms that are open
+    private ConcurrentHashMap<String, RoomLog> logs;
+
+    /**
+     * constructor
+     * @param dir directory the rooms' logs go in
+     * @param segmentBytes size a segment is sealed at
+     * @param retentionBytes most bytes each room's log is cut back to
+     * @param retentionMillis longest a sealed segment is kept after its newest msg
+     */
+    public LogHistoryStore(File dir, long segmentBytes, long retentionBytes, long retentionMillis) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        logs = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * A call on a room's log, made holding the log's lock.
+     */
+    private interface LogCall<T> {
+        T call(RoomLog log) throws IOException;
+    }
+
+    /**
+     * @param room
+     * @return the room's log, created the first time the room uses it
+     */
+    private RoomLog log(String room) {
+        return logs.computeIfAbsent(room, name ->
+                new RoomLog(new File(dir, fileName(name)), segmentBytes, retentionBytes, retentionMillis));
+    }
+
+    /**
+     * Makes the call on the room's log under its lock. A log that was let go of while waiting for the lock is left
+     * alone and the call made on the room's new log instead, so a release racing a room opening again never loses
+     * msgs or leaves a log open.
+     * @param room
+     * @param call
+     * @param failed what to return if the call failed
+     * @return what the call returned
+     */
+    private <T> T withLog(String room, LogCall<T> call, T failed) {
+        while (true) {
+            RoomLog log = log(room);
+            synchronized (log) {
+                if (logs.get(room) != log) {
+                    continue;
+                }
+                try {
+                    return call.call(log);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return failed;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param room
+     * @return the room's name as a directory name, nothing in it can point outside the store's directory
+     */
+    static String fileName(String room) {
+        try {
+            return URLEncoder.encode(room, "UTF-8").replace(".", "%2E").replace("*", "%2A");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public boolean append(String room, WebSocketMsg msg) {
+        withLog(room, log -> {
+            log.append(msg);
+            return null;
+        }, null);
+        return true;
+    }
+
+    /**
+     * nothing to wait for, appends are done by the time they return
+     */
+    @Override
+    public void sync(Runnable task) {
+        task.run();
+    }
+
+    @Override
+    public List<WebSocketMsg> latest(String room, int count) {
+        return withLog(room, log -> log.latest(count), Collections.emptyList());
+    }
+
+    @Override
+    public List<WebSocketMsg> before(String room, long before, int count) {
+        return withLog(room, log -> log.before(before, count), Collections.emptyList());
+    }
+
+    /**
+     * closes the room's log, the room opening again reads it from disk. Calls already waiting for the log move on to
+     * the new one
+     */
+    @Override
+    public void release(String room) {
+        RoomLog log = logs.remove(room);
+        if (log != null) {
+            synchronized (log) {
+                log.close();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        for (String room : logs.keySet()) {
+            release(room);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package server;
+
+import java.math.BigDecimal;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server metrics, served on /metrics in the Prometheus text format.
+ * Counters and histogram buckets are LongAdders, so recording never takes a lock and threads on different loops
+ * don't contend on the same cache line. Each room publishes its own gauges, which are read when the metrics are
+ * scraped.
+ */
+public class Metrics {
+    //latency buckets from 10 micros to 10 seconds, in nanos
+    private static final long[] LATENCY = {
+            10_000L, 25_000L, 50_000L, 100_000L, 250_000L, 500_000L,
+            1_000_000L, 2_500_000L, 5_000_000L, 10_000_000L, 25_000_000L, 50_000_000L,
+            100_000_000L, 250_000_000L, 500_000_000L, 1_000_000_000L, 2_500_000_000L, 10_000_000_000L};
+    //queue depth buckets, in frames
+    private static final long[] DEPTH = {0, 1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1024};
+
+    public static final Counter ACCEPTS = new Counter("chat_accepts_total", "Connections accepted.");
+    public static final Counter HANDSHAKES = new Counter("chat_handshakes_total",
+            "Websocket handshakes answered.");
+    public static final Counter FRAMES_DECODED = new Counter("chat_frames_decoded_total",
+            "Websocket frames decoded from clients.");
+    public static final Counter PINGS = new Counter("chat_pings_total", "Heartbeat pings sent to silent clients.");
+    public static final Counter IDLE_CLOSES = new Counter("chat_idle_closes_total",
+            "Connections closed for sitting idle too long.");
+    public static final Counter RATE_LIMITED = new Counter("chat_rate_limited_total",
+            "Msgs over a connection, user or room rate limit.");
+    public static final Counter PRESENCE_FRAMES = new Counter("chat_presence_frames_total",
+            "Frames telling a room's members who joined and left.");
+    public static final Counter DB_ROWS = new Counter("chat_db_rows_total", "Msgs written to the history database.");
+    public static final Counter DB_LOST_ROWS = new Counter("chat_db_lost_rows_total",
+            "Msgs the history database refused, they are missing from the history.");
+    public static final Counter STORE_BACKLOGS = new Counter("chat_store_backlogs_total",
+            "Times a room stopped reading its clients because the history store turned a msg down.");
+    public static final Histogram BROADCAST = new Histogram("chat_broadcast_seconds",
+            "Time to hand a msg to every client of its room.", LATENCY, 1e-9);
+    public static final Histogram OUTBOUND_DEPTH = new Histogram("chat_outbound_queue_depth",
+            "Deepest outbound queue in the room after each broadcast, in frames.", DEPTH, 1);
+    public static final Histogram DB_INSERT = new Histogram("chat_db_insert_seconds",
+            "Time to insert and commit one batch of msgs.", LATENCY, 1e-9);
+    public static final Histogram SEARCH = new Histogram("chat_search_seconds",
+            "Time to find and read the msgs answering a search.", LATENCY, 1e-9);
+
+    //gauges of the rooms currently open
+    private static final Set<Room> ROOMS = ConcurrentHashMap.newKeySet();
+
+    private Metrics() {
+    }
+
+    /**
+     * A count that only goes up.
+     */
+    public static class Counter {
+        private final String name;
+        private final String help;
+        private final LongAdder count = new LongAdder();
+
+        Counter(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        public void increment() {
+            count.increment();
+        }
+
+        public void add(long n) {
+            count.add(n);
+        }
+
+        void write(StringBuilder out) {
+            header(out, name, help, "counter");
+            out.append(name).append(' ').append(count.sum()).append('\n');
+        }
+    }
+
+    /**
+     * Counts of observed values in fixed buckets.
+     */
+    public static class Histogram {
+        private final String name;
+        private final String help;
+        //upper bounds of the buckets, the last bucket takes everything above them
+        private final long[] bounds;
+        private final LongAdder[] buckets;
+        private final LongAdder sum = new LongAdder();
+        //what an observed value is multiplied by when written out, e.g. nanos to seconds
+        private final double scale;
+
+        Histogram(String name, String help, long[] bounds, double scale) {
+            this.name = name;
+            this.help = help;
+            this.bounds = bounds;
+            this.scale = scale;
+            buckets = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void observe(long value) {
+            int i = 0;
+            while (i < bounds.length && value > bounds[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            sum.add(value);
+        }
+
+        void write(StringBuilder out) {
+            header(out, name, help, "histogram");
+            long count = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                count += buckets[i].sum();
+                out.append(name).append("_bucket{le=\"")
+                        .append(i < bounds.length ? format(bounds[i] * scale) : "+Inf")
+                        .append("\"} ").append(count).append('\n');
+            }
+            out.append(name).append("_sum ").append(format(sum.sum() * scale)).append('\n');
+            out.append(name).append("_count ").append(count).append('\n');
+        }
+    }
+
+    /**
+     * Gauges of one room, written by the room's executor and read when scraped.
+     */
+    public static class Room {
+        private final String name;
+        volatile int clients;
+        volatile int historyMsgs;
+        volatile long historyBytes;
+        volatile int outboundQueued;
+
+        Room(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * @param name
+     * @return the gauges of a newly opened room
+     */
+    public static Room openRoom(String name) {
+        Room room = new Room(name);
+        ROOMS.add(room);
+        return room;
+    }
+
+    /**
+     * stops reporting a room once it has closed
+     * @param room
+     */
+    public static void closeRoom(Room room) {
+        ROOMS.remove(room);
+    }
+
+    /**
+     * @return every metric in the Prometheus text format
+     */
+    public static String render() {
+        StringBuilder out = new StringBuilder(4096);
+        ACCEPTS.write(out);
+        HANDSHAKES.write(out);
+        FRAMES_DECODED.write(out);
+        PINGS.write(out);
+        IDLE_CLOSES.write(out);
+        RATE_LIMITED.write(out);
+        PRESENCE_FRAMES.write(out);
+        DB_ROWS.write(out);
+        DB_LOST_ROWS.write(out);
+        STORE_BACKLOGS.write(out);
+        BROADCAST.write(out);
+        OUTBOUND_DEPTH.write(out);
+        DB_INSERT.write(out);
+        SEARCH.write(out);
+
+        header(out, "chat_rooms", "Rooms currently open.", "gauge");
+        out.append("chat_rooms ").append(ROOMS.size()).append('\n');
+        header(out, "chat_room_clients", "Clients in the room.", "gauge");
+        for (Room room : ROOMS) {
+            gauge(out, "chat_room_clients", room, room.clients);
+        }
+        header(out, "chat_room_history_msgs", "Msgs in the room's recent history.", "gauge");
+        for (Room room : ROOMS) {
+            gauge(out, "chat_room_history_msgs", room, room.historyMsgs);
+        }
+        header(out, "chat_room_history_bytes", "Bytes of encoded frames in the room's recent history.", "gauge");
+        for (Room room : ROOMS) {
+            gauge(out, "chat_room_history_bytes", room, room.historyBytes);
+        }
+        header(out, "chat_room_outbound_queued", "Frames waiting to be written to the room's clients.", "gauge");
+        for (Room room : ROOMS) {
+            gauge(out, "chat_room_outbound_queued", room, room.outboundQueued);
+        }
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, Room room, long value) {
+        out.append(name).append("{room=\"");
+        //label values escape backslashes, quotes and line breaks
+        for (int i = 0; i < room.name.length(); i++) {
+            char c = room.name.charAt(i);
+            if (c == '\\' || c == '"') {
+                out.append('\\').append(c);
+            } else if (c == '\n') {
+                out.append("\\n");
+            } else {
+                out.append(c);
+            }
+        }
+        out.append("\"} ").append(value).append('\n');
+    }
+
+    private static String format(double value) {
+        return BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+    }
+}
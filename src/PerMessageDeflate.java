@@ -0,0 +1,175 @@
+package server;
+
+import java.net.ProtocolException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * RFC 7692 permessage-deflate, negotiated without context takeover in both directions.
+ * Every msg is compressed on its own, so a broadcast frame is compressed once and the same bytes go to every client,
+ * and a client's msgs can be inflated by any inflater. Deflaters and inflaters hold native memory and are slow to
+ * create, so they are pooled and reset between msgs instead.
+ */
+public class PerMessageDeflate {
+    //response to an accepted offer
+    public static final String RESPONSE = "permessage-deflate; server_no_context_takeover; client_no_context_takeover";
+
+    //empty stored block a sync flush ends with, left off on the wire
+    private static final byte[] TAIL = {0, 0, (byte) 0xFF, (byte) 0xFF};
+
+    //most deflaters and inflaters kept when idle
+    private static final int POOL_LIMIT = 64;
+
+    private static final Pool<Deflater> DEFLATERS = new Pool<>();
+    private static final Pool<Inflater> INFLATERS = new Pool<>();
+
+    private PerMessageDeflate() {
+    }
+
+    /**
+     * Idle instances, anything returned past the limit is ended.
+     */
+    private static class Pool<T> {
+        private final ConcurrentLinkedQueue<T> idle = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+
+        T take() {
+            T t = idle.poll();
+            if (t != null) {
+                size.decrementAndGet();
+            }
+            return t;
+        }
+
+        boolean offer(T t) {
+            if (size.incrementAndGet() > POOL_LIMIT) {
+                size.decrementAndGet();
+                return false;
+            }
+            idle.offer(t);
+            return true;
+        }
+    }
+
+    /**
+     * Checks a Sec-WebSocket-Extensions header for a permessage-deflate offer this server can accept.
+     * Offers asking for a smaller server window are declined, the deflater always uses the full window.
+     * @param header the header's value, may be null
+     * @return whether the response should accept permessage-deflate
+     */
+    public static boolean accepts(String header) {
+        if (header == null) {
+            return false;
+        }
+        for (String offer : header.split(",")) {
+            String[] params = offer.split(";");
+            if (!params[0].trim().equalsIgnoreCase("permessage-deflate")) {
+                continue;
+            }
+            boolean ok = true;
+            for (int i = 1; i < params.length; i++) {
+                String[] param = params[i].split("=", 2);
+                String name = param[0].trim().toLowerCase();
+                String value = param.length > 1 ? param[1].trim().replace("\"", "") : null;
+                if (name.equals("server_max_window_bits")) {
+                    ok &= "15".equals(value);
+                } else if (name.equals("client_max_window_bits")) {
+                    ok &= value == null || value.matches("8|9|1[0-5]");
+                } else if (!name.equals("server_no_context_takeover") && !name.equals("client_no_context_takeover")) {
+                    ok = false;
+                }
+            }
+            if (ok) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * compresses one msg's payload
+     * @param payload
+     * @param off
+     * @param len
+     * @return the compressed payload without the sync flush tail, ready to be sent with RSV1 set
+     */
+    public static byte[] deflate(byte[] payload, int off, int len) {
+        Deflater deflater = DEFLATERS.take();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+        try {
+            deflater.setInput(payload, off, len);
+            byte[] out = new byte[len / 2 + 64];
+            int n = 0;
+            while (true) {
+                n += deflater.deflate(out, n, out.length - n, Deflater.SYNC_FLUSH);
+                if (n < out.length) {
+                    break;
+                }
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            return Arrays.copyOf(out, n - TAIL.length);
+        } finally {
+            deflater.reset();
+            if (!DEFLATERS.offer(deflater)) {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * decompresses one msg's payload chunk by chunk, the inflated msg is kept in chunks as well
+     * @param payload the payload as the client sent it
+     * @param limit most bytes the msg may inflate to
+     * @return the inflated payload
+     * @throws ProtocolException if the payload isn't valid deflate data or inflates past the limit
+     */
+    public static ChunkedBuffer inflate(ChunkedBuffer payload, int limit) throws ProtocolException {
+        Inflater inflater = INFLATERS.take();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        try {
+            ChunkedBuffer out = new ChunkedBuffer();
+            byte[] chunk = new byte[(int) Math.min(ChunkedBuffer.CHUNK, Math.max(1024L, payload.size() * 4L))];
+            for (int c = 0; c < payload.chunks(); c++) {
+                inflater.setInput(payload.chunk(c), 0, payload.length(c));
+                inflate(inflater, chunk, out, limit);
+            }
+            inflater.setInput(TAIL);
+            inflate(inflater, chunk, out, limit);
+            if (inflater.needsDictionary()) {
+                throw new ProtocolException("compressed msg needs a dictionary");
+            }
+            return out;
+        } catch (DataFormatException e) {
+            throw new ProtocolException("bad compressed msg: " + e.getMessage());
+        } finally {
+            inflater.reset();
+            if (!INFLATERS.offer(inflater)) {
+                inflater.end();
+            }
+        }
+    }
+
+    /**
+     * inflates everything the inflater's current input gives
+     */
+    private static void inflate(Inflater inflater, byte[] chunk, ChunkedBuffer out, int limit)
+            throws DataFormatException, ProtocolException {
+        int n;
+        //a chunk that isn't filled means the input ran out or the stream ended
+        do {
+            n = inflater.inflate(chunk);
+            if (out.size() + n > limit) {
+                throw new ProtocolException("compressed msg inflates past " + limit + " bytes");
+            }
+            out.write(chunk, 0, n);
+        } while (n == chunk.length);
+    }
+}
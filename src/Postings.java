@@ -0,0 +1,152 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The ids of the msgs a term appears in, as a growable array of bytes rather than a list of boxed numbers.
+ * Ids are added in increasing order and each is stored as its distance from the previous one in a variable length
+ * encoding, seven bits a byte, so the ids of a busy room's common words mostly take a byte each.
+ * The first id is stored as its distance from 0, a list can be written out as it is and read back on its own.
+ */
+public class Postings {
+    //the encoded distances, only the first length bytes are used
+    private byte[] bytes;
+    private int length;
+    //number of ids and the last one added
+    private int count;
+    private int last;
+
+    public Postings() {
+        bytes = new byte[8];
+    }
+
+    /**
+     * adds an id larger than every id added so far, an id that isn't is ignored
+     * @param id
+     */
+    public void add(int id) {
+        if (count > 0 && id <= last) {
+            return;
+        }
+        if (length + 5 > bytes.length) {
+            bytes = Arrays.copyOf(bytes, bytes.length * 2);
+        }
+        length = putVarint(bytes, length, id - last);
+        last = id;
+        count++;
+    }
+
+    /**
+     * @return number of ids
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return the largest id, 0 if there are none
+     */
+    public int last() {
+        return last;
+    }
+
+    /**
+     * @return the ids, in increasing order
+     */
+    public int[] toArray() {
+        int[] ids = new int[count];
+        decode(ByteBuffer.wrap(bytes, 0, length), 0, ids, 0, count);
+        return ids;
+    }
+
+    /**
+     * writes the ids encoded as if they followed another list, the first distance is taken from the given id
+     * @param out
+     * @param after last id of the list these follow, 0 for none
+     */
+    public void writeAfter(ByteBuffer out, int after) {
+        if (count == 0) {
+            return;
+        }
+        //only the first distance changes, the rest is copied as it is
+        int first = firstLength();
+        byte[] head = new byte[5];
+        out.put(head, 0, putVarint(head, 0, firstId() - after));
+        out.put(bytes, first, length - first);
+    }
+
+    /**
+     * @param after
+     * @return how many bytes writeAfter writes
+     */
+    public int lengthAfter(int after) {
+        if (count == 0) {
+            return 0;
+        }
+        return length - firstLength() + putVarint(new byte[5], 0, firstId() - after);
+    }
+
+    /**
+     * @return the smallest id
+     */
+    private int firstId() {
+        return getVarint(ByteBuffer.wrap(bytes, 0, length));
+    }
+
+    /**
+     * @return bytes taken by the first distance
+     */
+    private int firstLength() {
+        int i = 0;
+        while ((bytes[i] & 0x80) != 0) {
+            i++;
+        }
+        return i + 1;
+    }
+
+    /**
+     * decodes ids written by a list
+     * @param in the encoded distances, read from its position
+     * @param start id the first distance is taken from
+     * @param ids array the ids are put in
+     * @param offset where in the array the first id goes
+     * @param count number of ids to read
+     * @return the last id read
+     */
+    static int decode(ByteBuffer in, int start, int[] ids, int offset, int count) {
+        int id = start;
+        for (int i = 0; i < count; i++) {
+            id += getVarint(in);
+            ids[offset + i] = id;
+        }
+        return id;
+    }
+
+    /**
+     * @return the number at the buffer's position, moving past it
+     */
+    private static int getVarint(ByteBuffer in) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * @return the index after the number
+     */
+    private static int putVarint(byte[] out, int pos, int value) {
+        while ((value & ~0x7F) != 0) {
+            out[pos++] = (byte) (value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        out[pos++] = (byte) value;
+        return pos;
+    }
+}
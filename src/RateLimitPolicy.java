@@ -0,0 +1,13 @@
+package server;
+
+/**
+ * What happens to a msg from a client sending faster than a rate limit allows.
+ */
+public enum RateLimitPolicy {
+    //drop the msg, the client isn't told
+    DROP,
+    //stop reading from the client until the msg may go through, so it's slowed down by TCP flow control
+    DELAY,
+    //close the client's connection
+    DISCONNECT
+}
@@ -0,0 +1,71 @@
+package server;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Token bucket limits on the msgs a connection, a user name and a room may send, see Config for the rates.
+ * Every msg a client sends is checked right after it's decoded, before it's stored or sent to anyone. A connection's
+ * bucket is kept by the client and a room's by the room, a user name's bucket is shared by every connection using the
+ * name. A command counts against the name its client joined as, a client that joined without one only has its
+ * connection's bucket for it.
+ * A msg turned away by one limit may already have taken a token from the limits checked before it.
+ */
+public class RateLimits {
+    //buckets of the user names that sent something lately
+    private static final ConcurrentHashMap<String, TokenBucket> USERS = new ConcurrentHashMap<>();
+
+    private RateLimits() {
+    }
+
+    /**
+     * @return a new connection's bucket, null if connections aren't limited
+     */
+    public static TokenBucket connection() {
+        return bucket(Config.CONNECTION_RATE, Config.CONNECTION_BURST);
+    }
+
+    /**
+     * @return a new room's bucket, null if rooms aren't limited
+     */
+    public static TokenBucket room() {
+        return bucket(Config.ROOM_RATE, Config.ROOM_BURST);
+    }
+
+    private static TokenBucket bucket(double rate, int burst) {
+        return rate > 0 ? new TokenBucket(rate, burst) : null;
+    }
+
+    /**
+     * takes a token for the msg from each bucket that applies
+     * @param connection the sending connection's bucket or null
+     * @param room the room's bucket or null
+     * @param userName name the msg counts against or null
+     * @return 0 if the msg may go through, otherwise nanos until it may
+     */
+    public static long check(TokenBucket connection, TokenBucket room, String userName) {
+        long now = System.nanoTime();
+        long wait = connection == null ? 0 : connection.take(now);
+        if (wait > 0) {
+            return wait;
+        }
+        if (Config.USER_RATE > 0 && userName != null) {
+            TokenBucket user = USERS.get(userName);
+            if (user == null) {
+                user = USERS.computeIfAbsent(userName, name -> new TokenBucket(Config.USER_RATE, Config.USER_BURST));
+            }
+            wait = user.take(now);
+            if (wait > 0) {
+                return wait;
+            }
+        }
+        return room == null ? 0 : room.take(now);
+    }
+
+    /**
+     * forgets user names whose bucket is full again, the next msg of such a name starts a new full bucket
+     */
+    public static void sweep() {
+        long now = System.nanoTime();
+        USERS.values().removeIf(bucket -> bucket.isFull(now));
+    }
+}
@@ -0,0 +1,78 @@
+package server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The frames of a room's recent history in one format, concatenated into a single buffer.
+ * A joining client is sent a view of the buffer starting at the first msg it doesn't have, one buffer written with
+ * one gathering write instead of a frame and a write per msg. The room keeps a snapshot per format and builds a new
+ * one once too many msgs came in after it, the msgs in between are sent as frames of their own.
+ */
+public class ReplaySnapshot {
+    //the frames, read-only
+    private final ByteBuffer frames;
+    //id of each msg and where its frame starts
+    private final long[] ids;
+    private final int[] offsets;
+
+    private ReplaySnapshot(ByteBuffer frames, long[] ids, int[] offsets) {
+        this.frames = frames;
+        this.ids = ids;
+        this.offsets = offsets;
+    }
+
+    /**
+     * copies the frames of every msg in the history into one direct buffer, encoding those not sent in the format yet
+     * @param history
+     * @param binary
+     * @param deflate
+     * @return the snapshot
+     */
+    public static ReplaySnapshot build(HistoryRing history, boolean binary, boolean deflate) {
+        int n = history.size();
+        long[] ids = new long[n];
+        int[] offsets = new int[n];
+        int size = 0;
+        for (int i = 0; i < n; i++) {
+            ids[i] = history.idAt(i);
+            offsets[i] = size;
+            size += history.get(i).getFrame(binary, deflate).remaining();
+        }
+
+        ByteBuffer frames = ByteBuffer.allocateDirect(size);
+        for (int i = 0; i < n; i++) {
+            frames.put(history.get(i).getFrame(binary, deflate));
+        }
+        frames.flip();
+        return new ReplaySnapshot(frames.asReadOnlyBuffer(), ids, offsets);
+    }
+
+    /**
+     * @return id of the newest msg in the snapshot, 0 if it's empty
+     */
+    public long lastId() {
+        return ids.length == 0 ? 0 : ids[ids.length - 1];
+    }
+
+    /**
+     * @param id
+     * @return a view of the frames of the msgs with an id of at least the given id, null if there are none
+     */
+    public ByteBuffer from(long id) {
+        int lo = 0, hi = ids.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ids[mid] < id) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        if (lo == ids.length) {
+            return null;
+        }
+        ByteBuffer view = frames.duplicate();
+        view.position(offsets[lo]);
+        return view;
+    }
+}
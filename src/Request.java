@@ -1,68 +1,203 @@
 package server;
 
-import java.util.Scanner;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 
 /**
  * Parses a HTTP request into an passable object
+ *
+ * The request head is parsed in place: the method, path and header fields are kept as offsets into the bytes it was
+ * read into, Strings are only made for what a response actually asks for. The views are only valid until the
+ * buffer is reused for the next request, everything the connection needs afterwards is worked out up front.
  */
 public class Request {
-    //string containing the request type
-    private String requestType;
-    //name of the file that's requested
-    private String fileName;
+    //the websocket GUID appended to the client's key
+    static final byte[] WS_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] GET = {'G', 'E', 'T'};
+    private static final byte[] HTTP_11 = "HTTP/1.1".getBytes(StandardCharsets.US_ASCII);
+
+    //bytes the request was read into
+    private byte[] buf;
+
+    //start and end of the method, path and version
+    private int methodEnd;
+    private int pathStart, pathEnd;
+    private int versionStart, versionEnd;
+
+    //start and end of each header field's name and value, 4 ints per field
+    private int[] fields;
+    private int fieldCount;
 
     //stores whether or not the request is a bad request or websocket
     private boolean isWS, isBadReq;
 
-    //stores the web socket key
-    private String wsKey;
+    //whether the client wants the connection kept open after the response
+    private boolean keepAlive;
+
+    //name of the file that's requested, made on first use
+    private String fileName;
 
     /**
      * The constructor checks and determines what type of request is coming
      * from the client and whether or not it is valid.
-     * @param request
+     * @param buf bytes holding the request head from index 0
+     * @param end index just past the blank line ending the head, or -1 if the head was too large
      */
-    public Request(Scanner request) {
-        request.useDelimiter("\\r\\n\\r\\n");
-
-        //initialize everything
-        isWS = false;
-        isBadReq = false;
-        wsKey = "";
+    public Request(byte[] buf, int end) {
+        this.buf = buf;
+        fields = new int[32];
 
         //check for bad request
-        if(!request.hasNextLine()) {
-            requestType = "400BadRequest";
-            fileName = "400BadRequest";
+        if (end < 0 || !parse(end)) {
             isBadReq = true;
             return;
         }
 
-        //splits up request to check for web socket HS
-        String header = request.next();
-        String[] req = header.split("\\r\\n");
-        Matcher get = Pattern.compile("^GET").matcher(req[0]);
-
-        if(get.find()) {
-            Matcher match = Pattern.compile("Sec-WebSocket-Key: (.*)").matcher(header);
-            //if is WS request
-            if(match.find()) {
-                wsKey = match.group(1) + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
-                isWS = true;
-            }else {
-                String[] str = req[0].split("\\s+");
-                fileName = str[1];
-                if(fileName.equals("/")){
-                    fileName = "/index.html";
-                }
-            }
-        }else {
-            requestType = "400BadRequest";
-            fileName = "400BadRequest";
+        if (!equals(0, methodEnd, GET)) {
             isBadReq = true;
+            return;
         }
+
+        //if is WS request
+        isWS = field("sec-websocket-key") >= 0;
+
+        //HTTP/1.1 connections stay open unless the client says otherwise, HTTP/1.0 ones only if it asks
+        int connection = field("connection");
+        boolean http11 = equals(versionStart, versionEnd, HTTP_11);
+        keepAlive = http11 ? connection < 0 || !contains(connection, "close")
+                : connection >= 0 && contains(connection, "keep-alive");
+    }
+
+    /**
+     * splits the head into the request line and header fields
+     * @param end
+     * @return false if the request line is malformed
+     */
+    private boolean parse(int end) {
+        int lineEnd = lineEnd(0, end);
+        methodEnd = indexOf(0, lineEnd, ' ');
+        if (methodEnd <= 0) {
+            return false;
+        }
+        pathStart = methodEnd + 1;
+        int targetEnd = indexOf(pathStart, lineEnd, ' ');
+        if (targetEnd <= pathStart) {
+            return false;
+        }
+        //the query isn't part of the file's name
+        int query = indexOf(pathStart, targetEnd, '?');
+        pathEnd = query < 0 ? targetEnd : query;
+        versionStart = targetEnd + 1;
+        versionEnd = lineEnd;
+
+        for (int start = lineEnd + 2; start < end - 2; start = lineEnd + 2) {
+            lineEnd = lineEnd(start, end);
+            int colon = indexOf(start, lineEnd, ':');
+            if (colon <= start) {
+                continue;
+            }
+            if (fieldCount * 4 == fields.length) {
+                int[] bigger = new int[fields.length * 2];
+                System.arraycopy(fields, 0, bigger, 0, fields.length);
+                fields = bigger;
+            }
+            int valueStart = colon + 1;
+            int valueEnd = lineEnd;
+            while (valueStart < valueEnd && isSpace(buf[valueStart])) {
+                valueStart++;
+            }
+            while (valueEnd > valueStart && isSpace(buf[valueEnd - 1])) {
+                valueEnd--;
+            }
+            int nameEnd = colon;
+            while (nameEnd > start && isSpace(buf[nameEnd - 1])) {
+                nameEnd--;
+            }
+            int i = fieldCount++ * 4;
+            fields[i] = start;
+            fields[i + 1] = nameEnd;
+            fields[i + 2] = valueStart;
+            fields[i + 3] = valueEnd;
+        }
+        return true;
+    }
+
+    /**
+     * @return index of the CR ending the line starting at from
+     */
+    private int lineEnd(int from, int end) {
+        for (int i = from; i < end - 1; i++) {
+            if (buf[i] == '\r' && buf[i + 1] == '\n') {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private int indexOf(int from, int to, char c) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private boolean equals(int from, int to, byte[] bytes) {
+        if (to - from != bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (buf[from + i] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param name lower case field name
+     * @return index of the field in fields or -1 if the request doesn't have it
+     */
+    private int field(String name) {
+        for (int f = 0; f < fieldCount * 4; f += 4) {
+            int start = fields[f];
+            if (fields[f + 1] - start != name.length()) {
+                continue;
+            }
+            int i = 0;
+            while (i < name.length() && Character.toLowerCase((char) buf[start + i]) == name.charAt(i)) {
+                i++;
+            }
+            if (i == name.length()) {
+                return f;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param f index of a field
+     * @param token lower case text
+     * @return whether the field's value contains the text, ignoring case
+     */
+    private boolean contains(int f, String token) {
+        int last = fields[f + 3] - token.length();
+        for (int start = fields[f + 2]; start <= last; start++) {
+            int i = 0;
+            while (i < token.length() && Character.toLowerCase((char) buf[start + i]) == token.charAt(i)) {
+                i++;
+            }
+            if (i == token.length()) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -80,23 +215,61 @@ public class Request {
     }
 
     /**
-     * @return websocket key if req is WS
+     * @return whether the client wants to send more requests on the connection
+     */
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * @return websocket key followed by the websocket GUID if req is WS
      */
     public String getWsKey() {
-        return isWS ? wsKey : null;
+        return isWS ? getHeader("Sec-WebSocket-Key") + new String(WS_GUID, StandardCharsets.US_ASCII) : null;
+    }
+
+    /**
+     * Feeds the websocket key straight from the request's bytes into the digest, followed by the websocket GUID.
+     * @param digest
+     */
+    public void digestWsKey(MessageDigest digest) {
+        int f = field("sec-websocket-key");
+        digest.update(buf, fields[f + 2], fields[f + 3] - fields[f + 2]);
+        digest.update(WS_GUID);
+    }
+
+    /**
+     * @param name header field name, any case
+     * @return the field's value or null if the request doesn't have it
+     */
+    public String getHeader(String name) {
+        int f = field(name.toLowerCase());
+        if (f < 0) {
+            return null;
+        }
+        return new String(buf, fields[f + 2], fields[f + 3] - fields[f + 2], StandardCharsets.ISO_8859_1);
     }
 
     /**
      * @return type of request
      */
     public String getRequestType(){
-        return requestType;
+        return isBadReq ? "400BadRequest" : new String(buf, 0, methodEnd, StandardCharsets.US_ASCII);
     }
 
     /**
      * @return the file requested
      */
     public String getFileName(){
+        if (isBadReq) {
+            return "400BadRequest";
+        }
+        if (fileName == null) {
+            fileName = new String(buf, pathStart, pathEnd - pathStart, StandardCharsets.UTF_8);
+            if (fileName.equals("/")) {
+                fileName = "/index.html";
+            }
+        }
         return fileName;
     }
-}
\ No newline at end of file
+}
@@ -1,144 +1,257 @@
 package server;
 
-import javax.xml.bind.DatatypeConverter;
-import java.io.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.Base64;
 
 /**
  * Stores all the necessary response information and determines what type of response to send based on the request.
  *
  */
 public class Response {
+    //end the headers of a response on a connection that stays open or is closed once the response is written
+    private static final ByteBuffer KEEP_ALIVE = FileCache.readOnly(FileCache.ascii("Connection: keep-alive\r\n"
+            + "Keep-Alive: timeout=" + Config.HTTP_IDLE_MILLIS / 1000 + ", max=" + Config.HTTP_MAX_REQUESTS + "\r\n\r\n"));
+    private static final ByteBuffer CLOSE = FileCache.readOnly(FileCache.ascii("Connection: close\r\n\r\n"));
+
+    //standard WS response template up to the accept value
+    private static final byte[] HS_START = FileCache.ascii("HTTP/1.1 101 Switching Protocols\r\n"
+            + "Connection: Upgrade\r\n"
+            + "Upgrade: websocket\r\n"
+            + "Sec-WebSocket-Accept: ");
+    //extension header following the accept value when permessage-deflate was negotiated
+    private static final byte[] HS_DEFLATE = FileCache.ascii("\r\nSec-WebSocket-Extensions: "
+            + PerMessageDeflate.RESPONSE);
+    //subprotocol header following them when the binary subprotocol was negotiated
+    private static final byte[] HS_BINARY = FileCache.ascii("\r\nSec-WebSocket-Protocol: " + BinaryCodec.PROTOCOL);
+    //SHA-1 digests reused for every handshake on a thread, looking one up per handshake is slow
+    private static final ThreadLocal<MessageDigest> SHA1 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
     //stores the file for the response if there is one
     private File file;
 
     //the request this response comes from
     private Request req;
 
+    //cached responses of the static files, may be null
+    private FileCache cache;
+
+    //buffers to send in order, either the whole response or only the headers when the file is sent from disk
+    private ByteBuffer[] head;
+    //file sent after the head with transferTo, or null
+    private File body;
+
+    //whether the connection stays open for another request
+    private boolean keepAlive;
+
+    //whether the websocket handshake accepted permessage-deflate and the binary subprotocol
+    private boolean deflate;
+    private boolean binary;
+
     /**
      * constructor
      *
      * @param req
+     * @param cache cache to serve files from
+     * @param keepAlive whether the connection may serve another request, the request can still ask to close it
      */
-    Response(Request req) {
+    Response(Request req, FileCache cache, boolean keepAlive) {
         this.req = req;
+        this.cache = cache;
+        this.keepAlive = keepAlive && req.isKeepAlive();
     }
 
     /**
-     * writes out the appropriate response
+     * Builds the appropriate response. Afterwards getHead holds the bytes to send and getBody the file to send
+     * after them if the file wasn't small enough to be sent from the cache.
      *
-     * @param out
-     * @throws BadRequestException
+     * @throws BadRequestException once the bad request response has been built
      */
-    public void write(OutputStream out) throws BadRequestException, IOException {
+    public void build() throws BadRequestException, IOException {
         //check bad request
         if (req.isBadReq()) {
-            write400(out);
+            //we can't tell where the next request would start
+            keepAlive = false;
+            write400();
             throw new BadRequestException();
         }
 
         //check for websocket handshake
         if (req.isWebSocket()) {
-            writeHS(out, req.getWsKey());
+            //the connection is the client's from here on
+            keepAlive = false;
+            writeHS();
+            Metrics.HANDSHAKES.increment();
+            return;
+        }
+
+        if (req.getFileName().equals("/metrics")) {
+            writeText("200 OK", "text/plain; version=0.0.4; charset=utf-8", Metrics.render());
             return;
         }
 
         //http file request
         file = new File("resources" + req.getFileName());
-        //check that file exists
-        if (!file.exists() || file.isDirectory()) {
-            write404(out);
+        //check that file exists and stays inside resources
+        if (!file.exists() || file.isDirectory() || req.getFileName().contains("..")) {
+            write404();
             return;
         }
 
-        writeContent(out, file);
+        writeContent(file);
+    }
+
+    /**
+     * @return the buffers to send first, in order
+     */
+    public ByteBuffer[] getHead() {
+        return head;
+    }
+
+    /**
+     * @return the file to send after the head or null
+     */
+    public File getBody() {
+        return body;
+    }
+
+    /**
+     * @return whether the connection stays open once the response is written
+     */
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * @return whether the websocket client negotiated permessage-deflate
+     */
+    public boolean isDeflate() {
+        return deflate;
+    }
+
+    /**
+     * @return whether the websocket client negotiated the binary subprotocol
+     */
+    public boolean isBinary() {
+        return binary;
     }
 
     /**
      * method to write out a bad request resposne
-     *
-     * @param out
      */
-    private void write400(OutputStream out) throws IOException {
-        out.write("HTTP/1.1 400 Bad Request\n".getBytes());
-        out.write(("Content-Length: " + "400: Bad Request".getBytes().length + "\n\n").getBytes());
-        out.write("400: Bad Request\n".getBytes());
+    private void write400() {
+        writeText("400 Bad Request", "400: Bad Request\n");
     }
 
     /**
      * writes out file not fount response
-     *
-     * @param out
      */
-    private void write404(OutputStream out) throws IOException {
-
-        out.write("HTTP/1.1 404 Not Found\n".getBytes());
-        out.write(("Content-Length: " + "404: Does Not Exist".getBytes().length + "\n\n").getBytes());
-        out.write("404: Does Not Exist\n".getBytes());
+    private void write404() {
+        writeText("404 Not Found", "404: Does Not Exist\n");
     }
 
     /**
      * writes out the websocket handshake response
-     * @param out
-     * @param key
-     * @throws IOException
+     * The key is digested straight from the request's bytes, the response is assembled as bytes around the
+     * accept value.
      */
-    private void writeHS(OutputStream out, String key) throws IOException {
-        try {
-            //standard WS response template
-            byte[] res = ("HTTP/1.1 101 Switching Protocols\r\n"
-                    + "Connection: Upgrade\r\n"
-                    + "Upgrade: websocket\r\n"
-                    + "Sec-WebSocket-Accept: "
-                    + DatatypeConverter
-                    .printBase64Binary(
-                            MessageDigest
-                                    .getInstance("SHA-1")
-                                    .digest(key
-                                            .getBytes("UTF-8")))
-                    + "\r\n\r\n")
-                    .getBytes("UTF-8");
-            out.write(res, 0, res.length);
-        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
-            e.printStackTrace();
+    private void writeHS() {
+        MessageDigest sha1 = SHA1.get();
+        req.digestWsKey(sha1);
+        //digest resets the digest for the next handshake
+        byte[] accept = Base64.getEncoder().encode(sha1.digest());
+
+        deflate = Config.DEFLATE && PerMessageDeflate.accepts(req.getHeader("Sec-WebSocket-Extensions"));
+        binary = BinaryCodec.accepts(req.getHeader("Sec-WebSocket-Protocol"));
+        byte[] extensions = deflate ? HS_DEFLATE : new byte[0];
+        byte[] protocol = binary ? HS_BINARY : new byte[0];
+
+        byte[] res = new byte[HS_START.length + accept.length + extensions.length + protocol.length + 4];
+        int n = 0;
+        for (byte[] part : new byte[][] {HS_START, accept, extensions, protocol}) {
+            System.arraycopy(part, 0, res, n, part.length);
+            n += part.length;
         }
+        res[n] = '\r';
+        res[n + 1] = '\n';
+        res[n + 2] = '\r';
+        res[n + 3] = '\n';
+        head = new ByteBuffer[] {ByteBuffer.wrap(res)};
     }
 
     /**
-     * server command to get the time
-     * @param out
-     * @throws IOException
+     * builds a short plain text response
+     * @param status status code and reason
+     * @param text body
      */
-    private void writeTime(OutputStream out) throws IOException {
-        String time = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss").format(new Date());
-        out.write("HTTP/1.1 200 OK\n".getBytes());
-        out.write(("Content-Length: " + time.getBytes().length + "\n\n").getBytes());
-        out.write((time + "\n").getBytes());
+    private void writeText(String status, String text) {
+        writeText(status, "text/plain", text);
     }
 
     /**
-     * writes out the content for a requested file
-     * @param out
+     * builds a short text response
+     * @param status status code and reason
+     * @param type content type
+     * @param text body
+     */
+    private void writeText(String status, String type, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        head = new ByteBuffer[] {
+                ByteBuffer.wrap(FileCache.ascii("HTTP/1.1 " + status + "\r\n"
+                        + "Content-Type: " + type + "\r\n"
+                        + "Content-Length: " + bytes.length + "\r\n")),
+                connection(),
+                ByteBuffer.wrap(bytes)};
+    }
+
+    /**
+     * @return the Connection header and the blank line ending the headers
+     */
+    private ByteBuffer connection() {
+        return (keepAlive ? KEEP_ALIVE : CLOSE).duplicate();
+    }
+
+    /**
+     * Answers a file request. Cached files are answered with their prebuilt response, files too large for the cache
+     * only get their headers built here and the body is sent straight from disk.
+     * A client whose copy is still current gets a 304, a client that accepts gzip gets the gzipped variant if there is
+     * one.
      * @param file
      * @throws IOException
      */
-    private void writeContent(OutputStream out, File file) throws IOException {
-        //byte array to store the file as bytes
-        byte[] byteFile = new byte[(int) file.length()];
+    private void writeContent(File file) throws IOException {
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        String ifModifiedSince = req.getHeader("If-Modified-Since");
 
-        //use buffered stream instead of reading one byte a time
-        BufferedInputStream stream = new BufferedInputStream(new FileInputStream(file));
-        stream.read(byteFile, 0, byteFile.length);
+        FileCache.Entry entry = cache == null ? null : cache.get(file);
+        if (entry != null) {
+            String encoding = req.getHeader("Accept-Encoding");
+            head = entry.response(encoding != null && encoding.contains("gzip"), ifNoneMatch, ifModifiedSince,
+                    connection());
+            return;
+        }
 
-        //write stat + header
-        out.write("HTTP/1.1 200 OK\n".getBytes());
-        out.write(("Content-Length: " + byteFile.length + "\n\n").getBytes());
+        long modified = file.lastModified();
+        long length = file.length();
+        String etag = FileCache.etag(modified, length);
+        if (FileCache.notModified(etag, modified, ifNoneMatch, ifModifiedSince)) {
+            head = new ByteBuffer[] {ByteBuffer.wrap(FileCache.ascii(FileCache.notModifiedHeaders(etag, modified,
+                    false))), connection()};
+            return;
+        }
 
-        //write content body
-        out.write(byteFile, 0, byteFile.length);
-        stream.close();
+        head = new ByteBuffer[] {ByteBuffer.wrap(FileCache.ascii(FileCache.headers(
+                FileCache.contentType(file.getName()), length, etag, modified, null, false))), connection()};
+        body = file;
     }
-}
\ No newline at end of file
+}
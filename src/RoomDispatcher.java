@@ -0,0 +1,60 @@
+package server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs a room's tasks one at a time in the order they were submitted, without a thread of its own.
+ * Used in virtual thread mode where there are no event loops: submitting never blocks, and while the room has work
+ * a single task on the shared executor drains the queue.
+ */
+public class RoomDispatcher implements Executor {
+    //executor the draining task runs on
+    private Executor executor;
+    //tasks waiting to run
+    private ConcurrentLinkedQueue<Runnable> tasks;
+    //whether a draining task is scheduled or running
+    private AtomicBoolean scheduled;
+
+    public RoomDispatcher(Executor executor) {
+        this.executor = executor;
+        tasks = new ConcurrentLinkedQueue<>();
+        scheduled = new AtomicBoolean();
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.offer(task);
+        schedule();
+    }
+
+    /**
+     * starts a draining task unless one is already running
+     */
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    /**
+     * runs queued tasks until the queue is empty
+     */
+    private void drain() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        scheduled.set(false);
+
+        //a task may have been added after the last poll but before scheduled was cleared
+        if (!tasks.isEmpty()) {
+            schedule();
+        }
+    }
+}
@@ -0,0 +1,473 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of one room's msgs, split into segment files that are memory mapped.
+ *
+ * A record holds the msg's id, time, JSON frame, user and text behind its length and a CRC32 of the rest. Appending
+ * copies the record into the mapping of the active segment, there is no write call per msg. Msgs read back keep a
+ * view of the mapped JSON frame as their frame, so a page of old history goes to JSON clients straight from the page
+ * cache without being encoded or copied onto the heap. Mappings are never unmapped by hand, a view stays valid after
+ * its segment was sealed, closed or deleted.
+ *
+ * Every segment has a sparse index, a (id, position) entry about every INDEX_INTERVAL bytes, in a file beside it.
+ * Finding a msg is a binary search over the segments' first ids and the segment's index and a short scan from there.
+ * Ids count up by one within a room, so the latest msgs or a page before an id are a range of ids.
+ *
+ * When a segment is full it's sealed, truncated to its records, and a new one named after its first id is started.
+ * Sealed segments are deleted oldest first once the room's log is larger than the retention size or their newest msg
+ * is older than the retention time. The active segment is never deleted.
+ *
+ * Opening the log recovers every segment by scanning from its last index entry that still points at a valid record.
+ * The first record whose length or CRC doesn't check out ends the segment, whatever follows is a record torn by a
+ * crash and is truncated away along with index entries pointing past it.
+ * Not thread safe on its own, the store calls it synchronized.
+ */
+public class RoomLog {
+    //length of what follows and its CRC32
+    static final int HEADER = 8;
+    //id, timestamp, frame length and user length
+    static final int FIXED = 8 + 8 + 4 + 4;
+    //bytes of records between two index entries
+    static final int INDEX_INTERVAL = 4096;
+    //id and position of an index entry
+    private static final int INDEX_ENTRY = 12;
+
+    /**
+     * One segment file, its mapping and its sparse index.
+     */
+    private static class Segment {
+        //id of the first msg, which the files are named after
+        private final long baseId;
+        private final File file;
+        private final File indexFile;
+
+        private RandomAccessFile raf;
+        private RandomAccessFile indexRaf;
+        private MappedByteBuffer map;
+        //bytes of valid records
+        private int end;
+        //id and time of the newest msg
+        private long lastId;
+        private long lastTimestamp;
+
+        //index entries and where the last one pointed
+        private long[] indexIds = new long[16];
+        private int[] indexPositions = new int[16];
+        private int indexSize;
+
+        Segment(File dir, long baseId) {
+            this.baseId = baseId;
+            file = new File(dir, String.format("%020d.log", baseId));
+            indexFile = new File(dir, String.format("%020d.idx", baseId));
+        }
+
+        /**
+         * @param id
+         * @return position of the last indexed record with an id of at most the given id, 0 if there is none
+         */
+        int floor(long id) {
+            int lo = 0, hi = indexSize;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (indexIds[mid] <= id) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo == 0 ? 0 : indexPositions[lo - 1];
+        }
+
+        void addIndex(long id, int pos) {
+            if (indexSize == indexIds.length) {
+                indexIds = Arrays.copyOf(indexIds, indexSize * 2);
+                indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+            }
+            indexIds[indexSize] = id;
+            indexPositions[indexSize] = pos;
+            indexSize++;
+        }
+
+        /**
+         * forces the mapping to disk, cuts the files to what's valid and closes them, the mapping stays readable
+         */
+        void close() throws IOException {
+            if (raf == null) {
+                return;
+            }
+            map.force();
+            raf.getChannel().truncate(end);
+            raf.close();
+            indexRaf.close();
+            raf = null;
+            indexRaf = null;
+        }
+    }
+
+    private final File dir;
+    private final int segmentBytes;
+    private final long retentionBytes;
+    private final long retentionMillis;
+
+    //segments oldest first, the last one is the one appended to
+    private List<Segment> segments;
+    //id of the newest msg, 0 while the log is empty
+    private long lastId;
+    //dropped segments whose files couldn't be deleted yet, tried again on every retention pass
+    private final List<Segment> undeleted = new ArrayList<>();
+
+    /**
+     * constructor, nothing is read until the log is used
+     * @param dir directory of the room's segments
+     * @param segmentBytes size a segment is sealed at
+     * @param retentionBytes most bytes the log is cut back to, the active segment is always kept
+     * @param retentionMillis longest a sealed segment is kept after its newest msg
+     */
+    public RoomLog(File dir, long segmentBytes, long retentionBytes, long retentionMillis) {
+        this.dir = dir;
+        this.segmentBytes = (int) Math.min(segmentBytes, Integer.MAX_VALUE);
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+    }
+
+    /**
+     * opens the segments on disk, recovering each of them, and applies the retention
+     */
+    private void open() throws IOException {
+        if (segments != null) {
+            return;
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("can't create " + dir);
+        }
+        String[] names = dir.list((d, name) -> name.endsWith(".log"));
+        Arrays.sort(names);
+        //segments left over from a failed delete are among them, retention drops them again
+        undeleted.clear();
+        segments = new ArrayList<>();
+        for (int i = 0; i < names.length; i++) {
+            Segment segment = new Segment(dir, Long.parseLong(names[i].substring(0, names[i].length() - 4)));
+            //every segment but the last is sealed and only read
+            recover(segment, i == names.length - 1);
+            segments.add(segment);
+            if (segment.lastId > 0) {
+                lastId = segment.lastId;
+            }
+        }
+        retain();
+    }
+
+    /**
+     * Maps a segment and finds where its valid records end. The scan starts at the last index entry that points at
+     * a valid record, a torn record and everything after it is cut off the segment and its index.
+     * @param segment
+     * @param active whether records will be appended to the segment, it stays open with room to grow
+     */
+    private void recover(Segment segment, boolean active) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(segment.file, "rw");
+        RandomAccessFile indexRaf = new RandomAccessFile(segment.indexFile, "rw");
+        FileChannel channel = raf.getChannel();
+        int length = (int) Math.min(channel.size(), Integer.MAX_VALUE);
+        segment.map = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+
+        ByteBuffer entries = ByteBuffer.allocate((int) (indexRaf.length() / INDEX_ENTRY * INDEX_ENTRY));
+        indexRaf.getChannel().read(entries, 0);
+        entries.flip();
+        while (entries.hasRemaining()) {
+            segment.addIndex(entries.getLong(), entries.getInt());
+        }
+        while (segment.indexSize > 0 && check(segment.map, segment.indexPositions[segment.indexSize - 1], length) < 0) {
+            segment.indexSize--;
+        }
+
+        int pos = segment.indexSize > 0 ? segment.indexPositions[segment.indexSize - 1] : 0;
+        int len;
+        while ((len = check(segment.map, pos, length)) >= 0) {
+            segment.lastId = segment.map.getLong(pos + HEADER);
+            segment.lastTimestamp = segment.map.getLong(pos + HEADER + 8);
+            pos += HEADER + len;
+        }
+        segment.end = pos;
+
+        if (pos < length) {
+            //a torn record or the unused end of a segment that wasn't closed
+            channel.truncate(pos);
+        }
+        indexRaf.getChannel().truncate((long) segment.indexSize * INDEX_ENTRY);
+
+        if (active) {
+            //mapped again once the torn tail is gone, mapping past the end grows the file
+            segment.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(pos, segmentBytes));
+            segment.raf = raf;
+            segment.indexRaf = indexRaf;
+        } else {
+            raf.close();
+            indexRaf.close();
+        }
+    }
+
+    /**
+     * @param map
+     * @param pos position of a record
+     * @param limit end of the bytes that may hold records
+     * @return length of the valid record at the position or -1 if there is none
+     */
+    static int check(ByteBuffer map, int pos, int limit) {
+        if (pos + HEADER + FIXED > limit) {
+            return -1;
+        }
+        int len = map.getInt(pos);
+        if (len < FIXED || len > limit - pos - HEADER) {
+            return -1;
+        }
+        ByteBuffer body = map.duplicate();
+        body.limit(pos + HEADER + len).position(pos + HEADER);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        if ((int) crc.getValue() != map.getInt(pos + 4)) {
+            return -1;
+        }
+        long frameLen = map.getInt(pos + HEADER + 16) & 0xFFFFFFFFL;
+        long userLen = map.getInt(pos + HEADER + 20) & 0xFFFFFFFFL;
+        return frameLen + userLen <= len - FIXED ? len : -1;
+    }
+
+    /**
+     * appends a msg to the active segment, starting a new segment if it doesn't fit
+     * @param msg msg with its id and timestamp set
+     * @throws IOException
+     */
+    public void append(WebSocketMsg msg) throws IOException {
+        open();
+        ByteBuffer frame = msg.getFrame();
+        byte[] user = msg.getUserName().getBytes(StandardCharsets.UTF_8);
+        byte[] text = msg.getMsg().getBytes(StandardCharsets.UTF_8);
+        int len = FIXED + frame.remaining() + user.length + text.length;
+
+        Segment active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (active == null || (long) active.end + HEADER + len > active.map.capacity()) {
+            active = roll(msg.getId(), HEADER + len);
+        }
+
+        int pos = active.end;
+        put(active.map, pos, msg, frame, user, text);
+
+        if (active.indexSize == 0 || pos - active.indexPositions[active.indexSize - 1] >= INDEX_INTERVAL) {
+            active.addIndex(msg.getId(), pos);
+            ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY);
+            entry.putLong(msg.getId()).putInt(pos).flip();
+            active.indexRaf.getChannel().write(entry, (long) (active.indexSize - 1) * INDEX_ENTRY);
+        }
+        active.end = pos + HEADER + len;
+        active.lastId = msg.getId();
+        active.lastTimestamp = msg.getTimestamp();
+        lastId = msg.getId();
+    }
+
+    /**
+     * writes a msg's record, the header goes in last so a record without a matching CRC is torn
+     * @param out buffer with room for the record at the position, its own position isn't moved
+     * @param pos
+     * @param msg
+     * @param frame the msg's JSON frame
+     * @param user the msg's user in UTF-8
+     * @param text the msg's text in UTF-8
+     * @return bytes written
+     */
+    static int put(ByteBuffer out, int pos, WebSocketMsg msg, ByteBuffer frame, byte[] user, byte[] text) {
+        int len = FIXED + frame.remaining() + user.length + text.length;
+        ByteBuffer body = out.duplicate();
+        body.position(pos + HEADER);
+        body.putLong(msg.getId()).putLong(msg.getTimestamp()).putInt(frame.remaining()).putInt(user.length);
+        body.put(frame).put(user).put(text);
+
+        body.limit(pos + HEADER + len).position(pos + HEADER);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        out.putInt(pos + 4, (int) crc.getValue());
+        out.putInt(pos, len);
+        return HEADER + len;
+    }
+
+    /**
+     * seals the active segment and starts a new one, then drops segments past the retention
+     * @param baseId id of the first msg going into the new segment
+     * @param needed bytes of that msg's record, a record larger than a segment gets a segment of its own size
+     * @return the new segment
+     */
+    private Segment roll(long baseId, int needed) throws IOException {
+        if (!segments.isEmpty()) {
+            segments.get(segments.size() - 1).close();
+        }
+        Segment segment = new Segment(dir, baseId);
+        segment.raf = new RandomAccessFile(segment.file, "rw");
+        segment.indexRaf = new RandomAccessFile(segment.indexFile, "rw");
+        segment.map = segment.raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentBytes, needed));
+        segments.add(segment);
+        retain();
+        return segment;
+    }
+
+    /**
+     * deletes the oldest sealed segments while the log is larger than the retention size or they are too old
+     */
+    private void retain() {
+        for (int i = undeleted.size() - 1; i >= 0; i--) {
+            if (delete(undeleted.get(i))) {
+                undeleted.remove(i);
+            }
+        }
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += segment.end;
+        }
+        long oldest = System.currentTimeMillis() - retentionMillis;
+        while (segments.size() > 1) {
+            Segment segment = segments.get(0);
+            if (bytes <= retentionBytes && segment.lastTimestamp >= oldest) {
+                break;
+            }
+            bytes -= segment.end;
+            segments.remove(0);
+            if (!delete(segment)) {
+                undeleted.add(segment);
+            }
+        }
+    }
+
+    /**
+     * Closes a segment and deletes its files, views of its mapping stay readable. The index goes first, so whatever
+     * is left behind still has its segment file and is found again when the log is opened.
+     * @return false if a file is still there
+     */
+    private static boolean delete(Segment segment) {
+        try {
+            segment.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        try {
+            Files.deleteIfExists(segment.indexFile.toPath());
+            Files.deleteIfExists(segment.file.toPath());
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * @param count most msgs to read
+     * @return the latest msgs, oldest first
+     * @throws IOException
+     */
+    public List<WebSocketMsg> latest(int count) throws IOException {
+        open();
+        return read(lastId - count + 1, lastId + 1);
+    }
+
+    /**
+     * @param before
+     * @param count most msgs to read
+     * @return the msgs older than the given id, oldest first
+     * @throws IOException
+     */
+    public List<WebSocketMsg> before(long before, int count) throws IOException {
+        open();
+        return read(before - count, Math.min(before, lastId + 1));
+    }
+
+    /**
+     * reads the msgs with ids in a range, starting at the segment and index entry closest before the range
+     * @param from first id
+     * @param to id past the last one
+     * @return the msgs found, oldest first
+     */
+    private List<WebSocketMsg> read(long from, long to) {
+        List<WebSocketMsg> msgs = new ArrayList<>();
+        if (from >= to || segments.isEmpty()) {
+            return msgs;
+        }
+        int s = segments.size() - 1;
+        while (s > 0 && segments.get(s).baseId > from) {
+            s--;
+        }
+        for (; s < segments.size(); s++) {
+            Segment segment = segments.get(s);
+            int pos = segment.floor(from);
+            while (pos < segment.end) {
+                ByteBuffer map = segment.map;
+                int len = map.getInt(pos);
+                long id = map.getLong(pos + HEADER);
+                if (id >= to) {
+                    return msgs;
+                }
+                if (id >= from) {
+                    msgs.add(record(map, pos, len));
+                }
+                pos += HEADER + len;
+            }
+        }
+        return msgs;
+    }
+
+    /**
+     * @return the msg of the record at the position, its JSON frame a view of the mapping
+     */
+    static WebSocketMsg record(ByteBuffer map, int pos, int len) {
+        ByteBuffer in = map.duplicate();
+        in.position(pos + HEADER);
+        long id = in.getLong();
+        long timestamp = in.getLong();
+        int frameLen = in.getInt();
+        int userLen = in.getInt();
+
+        int frameStart = in.position();
+        in.limit(frameStart + frameLen);
+        ByteBuffer frame = in.slice();
+
+        in.limit(pos + HEADER + len).position(frameStart + frameLen);
+        byte[] user = new byte[userLen];
+        in.get(user);
+        byte[] text = new byte[in.remaining()];
+        in.get(text);
+
+        WebSocketMsg msg = new WebSocketMsg(new String(user, StandardCharsets.UTF_8),
+                new String(text, StandardCharsets.UTF_8));
+        msg.setId(id);
+        msg.setTimestamp(timestamp);
+        msg.setFrame(frame);
+        return msg;
+    }
+
+    /**
+     * forces the active segment to disk and closes the files, the log opens again when it's used
+     */
+    public void close() {
+        if (segments == null) {
+            return;
+        }
+        for (Segment segment : segments) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        segments = null;
+        lastId = 0;
+    }
+}
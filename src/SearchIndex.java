@@ -0,0 +1,405 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Full-text index of one room's msgs, mapping each word to the ids of the msgs it appears in.
+ * Msgs are added as the room gets them, their words go into in-memory posting lists. What was indexed before lives in
+ * a file that is memory-mapped and searched in place: a table of words sorted by their UTF-8 bytes, binary searched,
+ * pointing at each word's posting list. Once the lists in memory hold enough ids they are merged into a new file, and
+ * so are they when the room closes. Opening the index again indexes whatever the store got after the file was written.
+ *
+ * A search finds the msgs having every word asked for, newest first. Words are runs of letters and digits compared
+ * without case. Nothing here is thread safe, every call for a room has to come from the same thread, which is never
+ * the room's own executor so the room keeps serving its clients while it's being searched.
+ */
+public class SearchIndex {
+    //"CHSI" at the start of an index file
+    private static final int MAGIC = 0x43485349;
+    //magic, id of the last msg indexed, number of words, where the words and posting lists start
+    private static final int HEADER = 24;
+    //per word: offset and length of the word, offset and length of its list, number of ids and the last one
+    private static final int ENTRY = 24;
+    //longer words are cut to this many chars
+    static final int MAX_TERM = 32;
+    //msgs read from the store at a time when catching up
+    private static final int PAGE = 1000;
+
+    //file the index is saved in
+    private File file;
+    //the saved index mapped read-only, null if there is none
+    private ByteBuffer disk;
+    private int diskTerms;
+    private int termsStart;
+    private int postingsStart;
+
+    //lists of the msgs indexed after the file was written
+    private HashMap<String, Postings> terms;
+    //ids in those lists, they are merged into the file once there are too many
+    private long pending;
+    private long mergeIds;
+    //id of the last msg indexed
+    private long lastId;
+    //recent msgs, search results are sent from here rather than read back from the store
+    private HistoryRing recent;
+
+    /**
+     * constructor, nothing is read until open is called
+     * @param file where the index is saved
+     * @param mergeIds ids kept in memory before they are merged into the file
+     */
+    public SearchIndex(File file, long mergeIds) {
+        this.file = file;
+        this.mergeIds = mergeIds;
+        terms = new HashMap<>();
+        recent = new HistoryRing(Config.HISTORY_MSGS, Config.HISTORY_BYTES);
+    }
+
+    /**
+     * maps the saved index and indexes the room's msgs the file doesn't cover yet
+     * @param store
+     * @param room
+     * @param nextId id the room's next msg gets, msgs from there on are added as they come
+     */
+    public void open(HistoryStore store, String room, long nextId) {
+        try {
+            map();
+        } catch (IOException e) {
+            //a broken index is built again from the store
+            e.printStackTrace();
+            disk = null;
+            lastId = 0;
+        }
+
+        for (long from = lastId + 1; from < nextId; from += PAGE) {
+            long to = Math.min(from + PAGE, nextId);
+            for (WebSocketMsg msg : store.before(room, to, (int) (to - from))) {
+                index(msg);
+            }
+        }
+    }
+
+    /**
+     * maps the file and reads its header
+     */
+    private void map() throws IOException {
+        disk = null;
+        lastId = 0;
+        if (!file.exists()) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (map.limit() < HEADER || map.getInt(0) != MAGIC) {
+                throw new IOException("not a search index: " + file);
+            }
+            lastId = map.getLong(4);
+            diskTerms = map.getInt(12);
+            termsStart = map.getInt(16);
+            postingsStart = map.getInt(20);
+            disk = map;
+        }
+    }
+
+    /**
+     * adds a msg the room just got, the msg is kept for a while so results don't have to be read back
+     * @param msg msg with its id set and its JSON frame encoded
+     */
+    public void add(WebSocketMsg msg) {
+        index(msg);
+        recent.add(msg);
+    }
+
+    /**
+     * adds a msg's words to the lists in memory, merging them into the file once they hold too many ids
+     * Ids that don't fit in an int aren't indexed.
+     * @param msg
+     */
+    private void index(WebSocketMsg msg) {
+        long id = msg.getId();
+        if (id <= lastId || id > Integer.MAX_VALUE) {
+            return;
+        }
+        lastId = id;
+        for (String term : terms(msg.getMsg())) {
+            terms.computeIfAbsent(term, t -> new Postings()).add((int) id);
+            pending++;
+        }
+        if (pending >= mergeIds) {
+            save();
+        }
+    }
+
+    /**
+     * @param text
+     * @return the distinct words of the text, lower case
+     */
+    static Set<String> terms(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        StringBuilder term = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (term.length() < MAX_TERM) {
+                    term.append(Character.toLowerCase(c));
+                }
+            } else if (term.length() > 0) {
+                terms.add(term.toString());
+                term.setLength(0);
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * @param query words separated by anything that isn't a letter or a digit
+     * @param limit most ids returned
+     * @return ids of the newest msgs having every word of the query, newest first
+     */
+    public int[] search(String query, int limit) {
+        Set<String> words = terms(query);
+        if (words.isEmpty()) {
+            return new int[0];
+        }
+        int[][] lists = new int[words.size()][];
+        int i = 0;
+        for (String word : words) {
+            lists[i] = postings(word);
+            if (lists[i].length == 0) {
+                return new int[0];
+            }
+            i++;
+        }
+
+        //candidates come from the shortest list, every other list only has to be probed
+        Arrays.sort(lists, Comparator.comparingInt(list -> list.length));
+        int[] found = new int[Math.min(limit, lists[0].length)];
+        int n = 0;
+        for (int j = lists[0].length - 1; j >= 0 && n < found.length; j--) {
+            int id = lists[0][j];
+            boolean all = true;
+            for (int k = 1; k < lists.length && all; k++) {
+                all = Arrays.binarySearch(lists[k], id) >= 0;
+            }
+            if (all) {
+                found[n++] = id;
+            }
+        }
+        return Arrays.copyOf(found, n);
+    }
+
+    /**
+     * @param word
+     * @return ids of every msg the word appears in, saved ones followed by those in memory
+     */
+    private int[] postings(String word) {
+        Postings memory = terms.get(word);
+        int entry = find(word.getBytes(StandardCharsets.UTF_8));
+        int saved = entry < 0 ? 0 : disk.getInt(entryAt(entry) + 16);
+        int[] ids = new int[saved + (memory == null ? 0 : memory.size())];
+        if (saved > 0) {
+            int at = entryAt(entry);
+            ByteBuffer list = disk.duplicate();
+            list.position(postingsStart + disk.getInt(at + 8));
+            Postings.decode(list, 0, ids, 0, saved);
+        }
+        if (memory != null) {
+            System.arraycopy(memory.toArray(), 0, ids, saved, memory.size());
+        }
+        return ids;
+    }
+
+    /**
+     * @param term
+     * @return index of the word's entry in the file, -1 if it isn't there
+     */
+    private int find(byte[] term) {
+        int lo = 0, hi = disk == null ? 0 : diskTerms;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compare(termAt(mid), term);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private int entryAt(int i) {
+        return HEADER + i * ENTRY;
+    }
+
+    /**
+     * @param i
+     * @return the word of the file's i-th entry
+     */
+    private byte[] termAt(int i) {
+        int at = entryAt(i);
+        byte[] term = new byte[disk.getInt(at + 4)];
+        ByteBuffer view = disk.duplicate();
+        view.position(termsStart + disk.getInt(at));
+        view.get(term);
+        return term;
+    }
+
+    /**
+     * compares words by their UTF-8 bytes, unsigned, the order the file's table is sorted in
+     */
+    private static int compare(byte[] a, byte[] b) {
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * @param ids ids search returned
+     * @param store
+     * @param room
+     * @return the msgs, from memory if they are still there or else read from the store, in the order of the ids.
+     * Msgs the store no longer has are left out.
+     */
+    public List<WebSocketMsg> fetch(int[] ids, HistoryStore store, String room) {
+        List<WebSocketMsg> msgs = new ArrayList<>();
+        for (int id : ids) {
+            int i = recent.indexOf(id);
+            if (i < recent.size() && recent.idAt(i) == id) {
+                msgs.add(recent.get(i));
+                continue;
+            }
+            List<WebSocketMsg> stored = store.before(room, id + 1, 1);
+            if (!stored.isEmpty() && stored.get(0).getId() == id) {
+                msgs.add(stored.get(0));
+            }
+        }
+        return msgs;
+    }
+
+    /**
+     * Merges the lists in memory into a new file that replaces the old one, then maps it.
+     * Each word's saved list is copied as it is with the ids in memory appended, only the first of those is encoded
+     * again. The file is written next to the old one and renamed over it, a crash leaves one or the other.
+     */
+    public void save() {
+        if (terms.isEmpty()) {
+            return;
+        }
+        //both tables in the file's order, merged like two sorted lists
+        List<byte[]> added = new ArrayList<>();
+        for (String term : terms.keySet()) {
+            added.add(term.getBytes(StandardCharsets.UTF_8));
+        }
+        added.sort(SearchIndex::compare);
+
+        int saved = disk == null ? 0 : diskTerms;
+        int total = saved;
+        for (byte[] term : added) {
+            if (find(term) < 0) {
+                total++;
+            }
+        }
+        //the entries for every word, then the words, then the lists
+        int[] savedEntry = new int[total];
+        Postings[] memory = new Postings[total];
+        byte[][] words = new byte[total][];
+        long wordBytes = 0;
+        long listBytes = 0;
+        int s = 0, a = 0;
+        for (int i = 0; i < total; i++) {
+            int cmp = s == saved ? 1 : a == added.size() ? -1 : compare(termAt(s), added.get(a));
+            savedEntry[i] = cmp <= 0 ? s++ : -1;
+            words[i] = cmp <= 0 ? termAt(savedEntry[i]) : added.get(a);
+            memory[i] = cmp >= 0 ? terms.get(new String(added.get(a++), StandardCharsets.UTF_8)) : null;
+            wordBytes += words[i].length;
+            listBytes += listLength(savedEntry[i], memory[i]);
+        }
+        long fileBytes = HEADER + (long) total * ENTRY + wordBytes + listBytes;
+        if (fileBytes > Integer.MAX_VALUE) {
+            //stays in memory, the room's index is too large for one mapping
+            return;
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            int newTermsStart = HEADER + total * ENTRY;
+            out.writeInt(MAGIC);
+            out.writeLong(lastId);
+            out.writeInt(total);
+            out.writeInt(newTermsStart);
+            out.writeInt((int) (newTermsStart + wordBytes));
+
+            int wordAt = 0, listAt = 0;
+            for (int i = 0; i < total; i++) {
+                int len = listLength(savedEntry[i], memory[i]);
+                int savedCount = savedEntry[i] < 0 ? 0 : disk.getInt(entryAt(savedEntry[i]) + 16);
+                int savedLast = savedEntry[i] < 0 ? 0 : disk.getInt(entryAt(savedEntry[i]) + 20);
+                out.writeInt(wordAt);
+                out.writeInt(words[i].length);
+                out.writeInt(listAt);
+                out.writeInt(len);
+                out.writeInt(savedCount + (memory[i] == null ? 0 : memory[i].size()));
+                out.writeInt(memory[i] == null ? savedLast : memory[i].last());
+                wordAt += words[i].length;
+                listAt += len;
+            }
+            for (byte[] word : words) {
+                out.write(word);
+            }
+            for (int i = 0; i < total; i++) {
+                int savedLast = 0;
+                if (savedEntry[i] >= 0) {
+                    int at = entryAt(savedEntry[i]);
+                    byte[] list = new byte[disk.getInt(at + 12)];
+                    ByteBuffer view = disk.duplicate();
+                    view.position(postingsStart + disk.getInt(at + 8));
+                    view.get(list);
+                    out.write(list);
+                    savedLast = disk.getInt(at + 20);
+                }
+                if (memory[i] != null) {
+                    ByteBuffer list = ByteBuffer.allocate(memory[i].lengthAfter(savedLast));
+                    memory[i].writeAfter(list, savedLast);
+                    out.write(list.array());
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            map();
+            terms.clear();
+            pending = 0;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return bytes of a word's merged list
+     */
+    private int listLength(int savedEntry, Postings memory) {
+        int savedLast = savedEntry < 0 ? 0 : disk.getInt(entryAt(savedEntry) + 20);
+        int len = savedEntry < 0 ? 0 : disk.getInt(entryAt(savedEntry) + 12);
+        return len + (memory == null ? 0 : memory.lengthAfter(savedLast));
+    }
+}
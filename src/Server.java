@@ -4,64 +4,117 @@ import java.io.*;
 import java.net.InetSocketAddress;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.HashMap;
-import java.util.Scanner;
-import java.sql.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.sql.SQLException;
 
 public class Server {
-    //stores all the rooms the server is hosting
-    private HashMap<String, ChatRoom> rooms;
+    //stores all the rooms the server is hosting, a room is created by the first client asking for it
+    private ConcurrentHashMap<String, ChatRoom> rooms;
+    //runs delayed tasks such as closing rooms that stayed empty
+    private ScheduledExecutorService timer;
     //server socket channel listens to requests
     private ServerSocketChannel listener;
-    //connection to the chat history database
-    private Connection connection;
+    //keeps every msg of every room
+    private HistoryStore store;
+    //threads the rooms read older msgs from the store on, so a read never holds up a room's executor
+    private ExecutorService historyReaders;
+    //threads the rooms' search indexes are updated and searched on, a room's name always picks the same one.
+    //null when search is turned off
+    private ExecutorService[] searchers;
+    //ready to send responses for the files under resources
+    private FileCache fileCache;
+
+    //selector loops all connections and rooms are spread over
+    private EventLoop[] loops;
+    private AtomicInteger next;
+    //runs every connection on its own virtual thread when not using the loops
+    private Executor virtualThreads;
+    //loop whose wheel holds the heartbeats of virtual thread clients, it has no channels of its own
+    private EventLoop heartbeatLoop;
 
     private final int PORT_NUM = 8080;
 
     /**
-     * Constructor, creates a new server and establishes a connection to the message database
+     * Constructor, creates a new server and opens the history store
      */
     Server() {
-        rooms = new HashMap<>();
+        rooms = new ConcurrentHashMap<>();
+        timer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        next = new AtomicInteger();
+        fileCache = new FileCache(Config.FILE_CACHE_BYTES, Config.FILE_CACHE_MAX_FILE);
+        if (Config.USER_RATE > 0) {
+            //user names that stopped sending
+            timer.scheduleWithFixedDelay(RateLimits::sweep, 1, 1, TimeUnit.MINUTES);
+        }
+        if (Config.HIBERNATE) {
+            //hibernated rooms that never came back
+            long sweepMillis = Math.max(1000, Math.min(Config.HIBERNATE_MILLIS, 3600 * 1000));
+            timer.scheduleWithFixedDelay(() -> HibernationFile.sweep(new File(Config.HIBERNATE_DIR),
+                    Config.HIBERNATE_MILLIS), 0, sweepMillis, TimeUnit.MILLISECONDS);
+        }
+        historyReaders = Executors.newFixedThreadPool(Math.max(1, Config.HISTORY_READERS), task -> {
+            Thread thread = new Thread(task, "history-reader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (Config.SEARCH) {
+            searchers = new ExecutorService[Math.max(1, Config.SEARCH_THREADS)];
+            for (int i = 0; i < searchers.length; i++) {
+                String name = "search-" + i;
+                searchers[i] = Executors.newSingleThreadExecutor(task -> {
+                    Thread thread = new Thread(task, name);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+        }
         try {
+            if (Config.MODE.equals("virtual")) {
+                virtualThreads = virtualThreadExecutor();
+                heartbeatLoop = new EventLoop("heartbeats");
+                heartbeatLoop.start();
+            } else {
+                loops = new EventLoop[Config.LOOPS];
+                for (int i = 0; i < loops.length; i++) {
+                    loops[i] = new EventLoop("loop-" + i);
+                    loops[i].start();
+                }
+            }
+
             listener = ServerSocketChannel.open();
             try{
-                connection = DriverManager.getConnection("jdbc:sqlite:chatHistory.db");
+                store = Config.HISTORY_STORE.equals("log")
+                        ? new LogHistoryStore(new File(Config.LOG_DIR), Config.LOG_SEGMENT_BYTES,
+                                Config.LOG_RETENTION_BYTES, Config.LOG_RETENTION_MILLIS)
+                        : SqliteHistoryStore.open("jdbc:sqlite:chatHistory.db");
+                //write out whatever is still pending when the server is stopped
+                Runtime.getRuntime().addShutdownHook(new Thread(store::close));
             }catch(SQLException e) {
                 e.printStackTrace();
             }
-
-            //only run once to create database
-//            connection = DriverManager.getConnection("jdbc:sqlite:chatHistory.db");
-//            Statement s = connection.createStatement();
-//            String template = "CREATE TABLE chatHistory (\n"
-//                    + "room text,\n"
-//                    + "user text,\n"
-//                    + "msg text\n"
-//                    + ");";
-//
-//            String msg = "INSERT INTO chatHistory(room, user, msg) VALUES('room', 'oliver', 'hello')";
-//            s.executeUpdate(msg);
-//            s.close();
-//            Statement st = connection.createStatement();
-//            ResultSet res = st.executeQuery("SELECT * FROM chatHistory");
-//            while(res.next()) {
-//                System.out.println(res.getString("room"));
-//                System.out.println(res.getString("user"));
-//                System.out.println(res.getString("msg"));
-//            }
-
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * Server opens up a new thread for each connection, if its a new room request it will
-     * attemp to join the connection to an existing thread containing a room,
-     * if the room does not exist then a new thread will be created to host the room.
-     * Any subsequent client connections to a pre-existing room will simply have their connections
-     * added to the existing thread without keeping a client request thread alive for the duration of their connection.
+     * The calling thread only accepts connections. Each new connection is handed to one of the server's event loops,
+     * which reads the request, answers it and for websocket clients waits for the join msg without blocking.
+     * Rooms are spread over the same loops, a client that joins a room moves to the room's loop.
+     * The number of threads is the number of loops plus the acceptor no matter how many rooms or sockets there are.
+     *
+     * In virtual thread mode each connection instead gets a virtual thread running plain blocking I/O, and each room
+     * a dispatcher that runs its tasks one at a time on the same virtual threads.
      */
     public void run() {
         try {
@@ -74,55 +127,20 @@ public class Server {
             while (true) {
                 //client socket
                 SocketChannel client = listener.accept();
-
-                //each new request is handled on a new thread
-                new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        try  {
-                            OutputStream out = client.socket().getOutputStream();
-                            Scanner in = new Scanner(client.socket().getInputStream(), "UTF-8");
-
-                            //new request from client input
-                            Request req = new Request(in);
-
-                            //forms a response based on the request
-                            Response res = new Response(req);
-
-                            //sends out response
-                            res.write(out);
-                            out.flush();
-
-                            //if the response is a websocket HS
-                            if (req.isWebSocket()) {
-                                WebSocketMsg msg = new WebSocketMsg(client.socket().getInputStream());
-                                String[] dataFrame = new String(msg.getDecoded()).split("\\s+");
-
-                                //check if they want to join a room
-                                if (dataFrame[0].equals("join")) {
-                                    //if joining room initialize a connection to the chat history database
-
-                                    String roomName = dataFrame[1];
-
-                                    //check if room exists
-                                    checkIfRoomExists(roomName, client);
-                                }
-                            }else {
-                                //if not a WS request close everything for the current thread
-                                try{
-                                    client.close();
-                                }catch(IOException e) {
-                                    e.printStackTrace();
-                                }
-                                out.close();
-                                in.close();
-                            }
-
-                        } catch (IOException | BadRequestException e) {
-                            e.printStackTrace();
-                        }
+                Metrics.ACCEPTS.increment();
+                if (virtualThreads != null) {
+                    virtualThreads.execute(new BlockingConnection(this, client, virtualThreads));
+                    continue;
+                }
+
+                EventLoop loop = nextLoop();
+                loop.execute(() -> {
+                    try {
+                        loop.register(client, new HttpHandler(this, loop, client));
+                    } catch (IOException e) {
+                        e.printStackTrace();
                     }
-                }).start();
+                });
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -139,24 +157,86 @@ public class Server {
     }
 
     /**
-     * checks if the room requested is already running
+     * checks if the room requested is already running, otherwise opens it on the next loop
+     * Clients on different loops may ask for the same room at the same time, the map creates it only once without
+     * locking the other rooms. A room that closes before the client gets to it sends the client back here.
      * @param roomName
      * @param client
-     * @throws IOException
      */
-    private void checkIfRoomExists(String roomName, SocketChannel client) throws IOException {
-        if (rooms.containsKey(roomName)) {
-            rooms.get(roomName).addSocketChannel(client);
-        } else {
-            ChatRoom room = new ChatRoom(connection, roomName);
-            room.addSocketChannel(client);
-            rooms.put(roomName, room);
-            room.listen();
-        }
+    public void checkIfRoomExists(String roomName, Client client) {
+        rooms.computeIfAbsent(roomName, this::openRoom).addClient(client);
+    }
 
-        //when the room becomes empty we can remove the room from the server altogether
-        if(rooms.get(roomName).hasClosed()) {
-            rooms.remove(roomName);
+    /**
+     * creates a room, its history is loaded on the room's executor before any client is let in
+     * @param roomName
+     * @return the new room
+     */
+    private ChatRoom openRoom(String roomName) {
+        Executor executor = virtualThreads != null ? new RoomDispatcher(virtualThreads) : nextLoop();
+        ChatRoom room = new ChatRoom(this, store, roomName, executor, historyReaders, searcherOf(roomName));
+        room.open();
+        return room;
+    }
+
+    /**
+     * @param roomName
+     * @return the thread the room's search index lives on, the same for every room of that name, null when search is
+     * turned off
+     */
+    private Executor searcherOf(String roomName) {
+        return searchers == null ? null : searchers[Math.floorMod(roomName.hashCode(), searchers.length)];
+    }
+
+    /**
+     * when the room closes we can remove the room from the server altogether
+     * @param roomName
+     * @param room
+     */
+    public void removeRoom(String roomName, ChatRoom room) {
+        rooms.remove(roomName, room);
+    }
+
+    /**
+     * runs a task once the delay has passed, the task should hand itself to whatever executor owns its state
+     * @param task
+     * @param delayMillis
+     */
+    public void schedule(Runnable task, long delayMillis) {
+        timer.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return loop running the heartbeats of virtual thread clients, null when using the event loops
+     */
+    public EventLoop getHeartbeatLoop() {
+        return heartbeatLoop;
+    }
+
+    /**
+     * @return cache of the static files
+     */
+    public FileCache getFileCache() {
+        return fileCache;
+    }
+
+    /**
+     * Creates an executor starting a virtual thread per task. Looked up reflectively so the server still builds and
+     * runs on Java 8 when virtual threads aren't used.
+     * @return the executor
+     */
+    private static Executor virtualThreadExecutor() {
+        try {
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("chat.mode=virtual needs Java 21 or newer", e);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * @return the loop to put the next connection or room on, round robin
+     */
+    private EventLoop nextLoop() {
+        return loops[Math.abs(next.getAndIncrement() % loops.length)];
+    }
+}
@@ -0,0 +1,13 @@
+package server;
+
+/**
+ * What a room does with a client whose outbound queue is full, i.e. a client that reads slower than the room talks.
+ */
+public enum SlowConsumerPolicy {
+    //drop the oldest queued frame to make room for the new one
+    DROP_OLDEST,
+    //close the client's connection
+    DISCONNECT,
+    //drop everything queued and only keep the newest frame
+    SKIP_TO_LATEST
+}
@@ -0,0 +1,124 @@
+package server;
+
+import java.sql.*;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * History of every room in the chatHistory table of one SQLite database.
+ * Reads go through a connection shared by the rooms, msgs are written in batches by the history writer in the
+ * background, so a msg is broadcast before it reaches the disk.
+ */
+public class SqliteHistoryStore implements HistoryStore {
+    //a connection to the data base, used to read history
+    private Connection connection;
+    //writes new msgs to the data base
+    private HistoryWriter writer;
+
+    /**
+     * constructor
+     * @param connection connection used to read history, the table has to exist
+     * @param writer started writer for new msgs
+     */
+    public SqliteHistoryStore(Connection connection, HistoryWriter writer) {
+        this.connection = connection;
+        this.writer = writer;
+    }
+
+    /**
+     * connects to the database, creates or upgrades the history table and starts the writer
+     * @param url jdbc url of the database
+     * @return the store
+     * @throws SQLException
+     */
+    public static SqliteHistoryStore open(String url) throws SQLException {
+        Connection connection = DriverManager.getConnection(url);
+        //creates the history table or upgrades one from an older version
+        HistorySchema.migrate(connection);
+
+        HistoryWriter writer = new HistoryWriter(url, Config.DB_QUEUE, Config.DB_BATCH, Config.DB_FLUSH_MILLIS);
+        writer.start();
+        return new SqliteHistoryStore(connection, writer);
+    }
+
+    /**
+     * The msg is only queued, the history writer inserts it in the background together with other rooms' msgs.
+     * It's turned down while the writer's queue is full.
+     */
+    @Override
+    public boolean append(String room, WebSocketMsg msg) {
+        return writer.offer(room, msg);
+    }
+
+    @Override
+    public void whenReady(Runnable task) {
+        writer.whenReady(task);
+    }
+
+    @Override
+    public void sync(Runnable task) {
+        writer.sync(task);
+    }
+
+    /**
+     * reads newest first through the (room, id) index
+     */
+    @Override
+    public List<WebSocketMsg> latest(String room, int count) {
+        LinkedList<WebSocketMsg> msgs = new LinkedList<>();
+        try (PreparedStatement pstmt = connection.prepareStatement(
+                "SELECT id, ts, user, msg FROM chatHistory WHERE room = ? ORDER BY id DESC LIMIT ?")) {
+            pstmt.setString(1, room);
+            pstmt.setInt(2, count);
+            ResultSet res = pstmt.executeQuery();
+            while (res.next()) {
+                msgs.addFirst(fromRow(res));
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return msgs;
+    }
+
+    @Override
+    public List<WebSocketMsg> before(String room, long before, int count) {
+        LinkedList<WebSocketMsg> msgs = new LinkedList<>();
+        try (PreparedStatement pstmt = connection.prepareStatement(
+                "SELECT id, ts, user, msg FROM chatHistory WHERE room = ? AND id < ? ORDER BY id DESC LIMIT ?")) {
+            pstmt.setString(1, room);
+            pstmt.setLong(2, before);
+            pstmt.setInt(3, count);
+            ResultSet res = pstmt.executeQuery();
+            while (res.next()) {
+                msgs.addFirst(fromRow(res));
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return msgs;
+    }
+
+    /**
+     * @param res row of the history table
+     * @return the msg stored in the row
+     */
+    private static WebSocketMsg fromRow(ResultSet res) throws SQLException {
+        WebSocketMsg msg = new WebSocketMsg(res.getString("user"), res.getString("msg"));
+        msg.setId(res.getLong("id"));
+        msg.setTimestamp(res.getLong("ts"));
+        return msg;
+    }
+
+    /**
+     * writes out whatever is still queued and closes the connections
+     */
+    @Override
+    public void close() {
+        writer.close();
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package server;
+
+/**
+ * Hashed timing wheel for the per-connection deadlines of one event loop.
+ * Time is cut into ticks and every tick has a slot holding the timeouts due in it, a timeout further away than one
+ * turn of the wheel also counts the turns it still has to wait. Scheduling and cancelling are O(1) and a tick only
+ * looks at its own slot, so the cost doesn't grow with the number of connections the way scanning all of them does.
+ * Timeouts fire up to one tick late. Not thread safe, only the owning loop's thread may touch the wheel.
+ */
+public class TimingWheel {
+    /**
+     * A task scheduled on the wheel. Owners keep their timeout and schedule it again instead of creating new ones.
+     */
+    public static class Timeout {
+        private final Runnable task;
+        //slot the timeout is linked into, null while not scheduled
+        private Slot slot;
+        private Timeout prev;
+        private Timeout next;
+        //turns of the wheel left before it's due
+        private long rounds;
+
+        public Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        /**
+         * @return whether the timeout is waiting to fire
+         */
+        public boolean isScheduled() {
+            return slot != null;
+        }
+
+        /**
+         * takes the timeout off the wheel, nothing happens if it isn't scheduled
+         */
+        public void cancel() {
+            if (slot != null) {
+                slot.remove(this);
+            }
+        }
+    }
+
+    /**
+     * Timeouts due in the same tick of a turn, as a doubly linked list so any of them can be removed in O(1).
+     */
+    private static class Slot {
+        private Timeout head;
+
+        void add(Timeout timeout) {
+            timeout.slot = this;
+            timeout.prev = null;
+            timeout.next = head;
+            if (head != null) {
+                head.prev = timeout;
+            }
+            head = timeout;
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            }
+            timeout.slot = null;
+            timeout.prev = timeout.next = null;
+        }
+    }
+
+    private final Slot[] slots;
+    //slots.length - 1, the number of slots is a power of two
+    private final int mask;
+    private final long tickMillis;
+    //timeouts of the current tick waiting to run
+    private final Slot expired = new Slot();
+
+    //ticks done so far and when the wheel started
+    private long tick;
+    private final long start;
+
+    /**
+     * constructor
+     * @param tickMillis length of a tick
+     * @param slots number of slots, rounded up to a power of two
+     * @param now current time in millis
+     */
+    public TimingWheel(long tickMillis, int slots, long now) {
+        int n = Integer.highestOneBit(Math.max(slots, 2) - 1) << 1;
+        this.slots = new Slot[n];
+        for (int i = 0; i < n; i++) {
+            this.slots[i] = new Slot();
+        }
+        mask = n - 1;
+        this.tickMillis = tickMillis;
+        start = now;
+    }
+
+    /**
+     * schedules a timeout, moving it if it was already scheduled
+     * @param timeout
+     * @param delayMillis
+     */
+    public void schedule(Timeout timeout, long delayMillis) {
+        timeout.cancel();
+        //at least the next tick, the current one may already be running
+        long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+        long due = tick + ticks;
+        timeout.rounds = (ticks - 1) / slots.length;
+        slots[(int) (due & mask)].add(timeout);
+    }
+
+    /**
+     * runs every timeout that came due up to now
+     * Due timeouts are moved to their own list before any of them runs, a task may cancel or schedule any timeout
+     * including ones in the slot being looked at.
+     * @param now current time in millis
+     */
+    public void advance(long now) {
+        long target = (now - start) / tickMillis;
+        while (tick < target) {
+            tick++;
+            Slot slot = slots[(int) (tick & mask)];
+            Timeout timeout = slot.head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.rounds == 0) {
+                    slot.remove(timeout);
+                    expired.add(timeout);
+                } else {
+                    timeout.rounds--;
+                }
+                timeout = next;
+            }
+
+            while ((timeout = expired.head) != null) {
+                expired.remove(timeout);
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param now current time in millis
+     * @return millis until the next tick is due, at least 1
+     */
+    public long millisToNextTick(long now) {
+        return Math.max(1, start + (tick + 1) * tickMillis - now);
+    }
+}
@@ -0,0 +1,57 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Token bucket kept as a single long, the time the bucket will be full again, updated with compare-and-set.
+ * Each msg takes one token, tokens come back at the rate up to the burst. Instead of counting tokens the bucket
+ * pushes the time it's full again one interval further per msg, a msg is let through as long as that time stays
+ * within burst intervals from now. Taking a token doesn't lock or allocate, any thread may take from any bucket.
+ */
+public class TokenBucket {
+    private static final AtomicLongFieldUpdater<TokenBucket> FULL_AT =
+            AtomicLongFieldUpdater.newUpdater(TokenBucket.class, "fullAt");
+
+    //nanos for one token to come back, and for all of them
+    private final long interval;
+    private final long burstNanos;
+    //System.nanoTime at which every token is back
+    private volatile long fullAt;
+
+    /**
+     * constructor, the bucket starts full
+     * @param perSecond tokens coming back a second
+     * @param burst most tokens held
+     */
+    public TokenBucket(double perSecond, int burst) {
+        interval = Math.max(1, (long) (1_000_000_000L / perSecond));
+        burstNanos = interval * Math.max(1, burst);
+        fullAt = System.nanoTime();
+    }
+
+    /**
+     * takes a token if there is one
+     * @param now System.nanoTime
+     * @return 0 if a token was taken, otherwise the nanos until there is one, nothing is taken then
+     */
+    public long take(long now) {
+        while (true) {
+            long full = fullAt;
+            long next = (full - now > 0 ? full : now) + interval;
+            if (next - now > burstNanos) {
+                return next - now - burstNanos;
+            }
+            if (FULL_AT.compareAndSet(this, full, next)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * @param now System.nanoTime
+     * @return whether every token is back, a full bucket behaves like a new one
+     */
+    public boolean isFull(long now) {
+        return fullAt - now <= 0;
+    }
+}
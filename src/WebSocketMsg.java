@@ -1,34 +1,61 @@
 package server;
 
-import java.io.DataInputStream;
-import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.List;
 
 /**
  * Stores, encode and decodes the websocket message
  */
 public class WebSocketMsg {
-    //byte representation of the decoded msg
-    private byte[] decoded;
+    //opcode of the frame the msg came in, text for msgs from the database
+    private int opcode;
 
-    //byte representation of the server encoded msg ready to be send
-    private byte[] encoded;
+    //frames ready to be sent, each built the first time a client needs it, indexed by format
+    //(JSON or binary, plain or compressed for clients that negotiated permessage-deflate)
+    private ByteBuffer[] frames;
+    static final int FORMATS = 4;
 
     //username and msg of the websocket msg
     private String userName;
     private String msg;
 
+    //id of the msg within its room and when it was sent, both 0 until the room takes the msg in
+    private long id;
+    private long timestamp;
+
     private boolean isClosed;
 
+    //payload of a ping, echoed back in the pong
+    private byte[] ping;
+
+    /**
+     * constructor used by the frame decoder for control frames
+     * @param opcode
+     * @param payload
+     */
+    public WebSocketMsg(int opcode, byte[] payload) {
+        this(opcode, ChunkedBuffer.wrap(payload));
+        if (opcode == 9) {
+            ping = payload;
+        }
+    }
+
     /**
-     * default constructor
-     * @param cStream
+     * constructor used by the frame decoder once a whole msg has been read and unmasked
+     * @param opcode
+     * @param payload
      */
-    public WebSocketMsg(InputStream cStream) {
+    public WebSocketMsg(int opcode, ChunkedBuffer payload) {
+        frames = new ByteBuffer[FORMATS];
+        this.opcode = opcode;
         userName = msg = "";
-        isClosed = false;
-        decode(cStream);
-        encode();
+        isClosed = opcode == 8;
+        if (opcode == 2) {
+            decodeBinary(payload);
+        } else {
+            decode(payload);
+        }
     }
 
     /**
@@ -37,105 +64,204 @@ public class WebSocketMsg {
      * @param msg
      */
     public WebSocketMsg(String userName, String msg) {
+        frames = new ByteBuffer[FORMATS];
+        opcode = 1;
         this.userName = userName;
         this.msg = msg;
-        encode();
     }
 
     /**
-     * decodes the incoming message from the client
-     * @param cStream
+     * splits the unmasked payload from the client into username and msg at the first run of whitespace
+     * The split happens on the bytes, each part is decoded from UTF-8 only once.
+     * @param payload
      */
-    private void decode(InputStream cStream) {
-        //wrap the input stream
-        DataInputStream stream = new DataInputStream(cStream);
-        try {
-            //get header and length bytes
-            byte[] header = new byte[2];
-            stream.read(header, 0, 2);
-
-            if((header[0] & 0xF) == 8) {
-                isClosed = true;
-            }
-
-            byte readLen = (byte) (header[1] & (byte) 127);
-
-            int maskIdx = (readLen == (byte) 126) ? 2 : (readLen == (byte) 127 ? 8 : 0);
+    private void decode(ChunkedBuffer payload) {
+        int size = payload.size();
+        int userEnd = 0;
+        while (userEnd < size && !isSpace(payload.get(userEnd))) {
+            userEnd++;
+        }
+        int msgStart = userEnd;
+        while (msgStart < size && isSpace(payload.get(msgStart))) {
+            msgStart++;
+        }
+        if (userEnd > 0 && msgStart > userEnd) {
+            userName = payload.string(0, userEnd);
+            msg = payload.string(msgStart, size);
+        }
+    }
 
-            //get msg length
-            int msgLen = readLen;
-            if (maskIdx > 0) {
-                byte[] temp = new byte[maskIdx];
-                msgLen = stream.read(temp, 0, maskIdx);
-            }
-            System.out.println("payload: " + msgLen);
+    /**
+     * reads username and msg from a binary msg, the decoder has checked its lengths
+     * @param payload
+     */
+    private void decodeBinary(ChunkedBuffer payload) {
+        userName = BinaryCodec.user(payload);
+        msg = BinaryCodec.body(payload);
+    }
 
-            //get the decoding key
-            byte[] key = new byte[4];
-            for (int i = 0; i < 4; i++) {
-                key[i] = stream.readByte();
-            }
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f' || b == 0x0B;
+    }
 
-            //decoded msg
-            byte[] msg = new byte[msgLen];
-            for (int i = 0; i < msgLen; i++) {
-                msg[i] = (byte) (stream.readByte() ^ key[i % 4]);
+    /**
+     * Encodes the msg in one format. The payload is written into the thread's reusable buffer and copied once into a
+     * direct buffer that is shared by every client the msg is sent to in that format.
+     * Small msgs and msgs that don't get any smaller are sent uncompressed to deflate clients.
+     * @param binary
+     * @param deflate
+     * @return the frame, read-only
+     */
+    private ByteBuffer encode(boolean binary, boolean deflate) {
+        ByteBuffer payload = binary
+                ? BinaryCodec.encode(id, timestamp, userName, msg)
+                : JsonWriter.get().beginObject()
+                        .field("id", id)
+                        .field("time", timestamp)
+                        .field("user", userName)
+                        .field("message", msg)
+                        .endObject().buffer();
+        int opcode = binary ? 2 : 1;
+        if (!deflate) {
+            return frame(opcode, payload, false).asReadOnlyBuffer();
+        }
+        if (payload.remaining() >= Config.DEFLATE_MIN) {
+            byte[] compressed = PerMessageDeflate.deflate(payload.array(), payload.arrayOffset() + payload.position(),
+                    payload.remaining());
+            if (compressed.length < payload.remaining()) {
+                return frame(opcode, ByteBuffer.wrap(compressed), true).asReadOnlyBuffer();
             }
+        }
+        return getFrame(binary, false);
+    }
 
-            decoded = msg;
+    /**
+     * Encodes the answer to a search, a JSON text frame whatever format the client negotiated:
+     * {"search": query, "results": [msgs as they are sent in JSON]}
+     * @param query the words searched for
+     * @param results the msgs found
+     * @return the frame, uncompressed
+     */
+    static ByteBuffer searchFrame(String query, List<WebSocketMsg> results) {
+        JsonWriter json = JsonWriter.get().beginObject()
+                .field("search", query)
+                .beginArray("results");
+        for (WebSocketMsg msg : results) {
+            json.beginObject()
+                    .field("id", msg.id)
+                    .field("time", msg.timestamp)
+                    .field("user", msg.userName)
+                    .field("message", msg.msg)
+                    .endObject();
+        }
+        return frame(1, json.endArray().endObject().buffer(), false);
+    }
 
-            String[] temp = new String(msg).split("\\s+", 2);
-            if(temp.length > 1) {
-                this.userName = temp[0];
-                this.msg = temp[1];
-            }
-        }catch(IOException e) {
-            e.printStackTrace();
+    /**
+     * Encodes the members of a room sent to a client joining with a name, a JSON text frame: {"members": [names]}
+     * @param members
+     * @return the frame, uncompressed
+     */
+    static ByteBuffer membersFrame(Collection<String> members) {
+        JsonWriter json = JsonWriter.get().beginObject().beginArray("members");
+        for (String name : members) {
+            json.value(name);
         }
+        return frame(1, json.endArray().endObject().buffer(), false);
     }
 
     /**
-     * encodes the decoded msg after being prosssed as a JSON msg
+     * Encodes who came and went in a room since the last such frame, a JSON text frame:
+     * {"joined": [names], "left": [names]}
+     * @param joined
+     * @param left
+     * @return the frame, uncompressed
      */
-    private void encode() {
-        //JSON representation of the msg
-        byte[] JSON = getJSON().getBytes();
+    static ByteBuffer presenceFrame(Collection<String> joined, Collection<String> left) {
+        JsonWriter json = JsonWriter.get().beginObject().beginArray("joined");
+        for (String name : joined) {
+            json.value(name);
+        }
+        json.endArray().beginArray("left");
+        for (String name : left) {
+            json.value(name);
+        }
+        return frame(1, json.endArray().endObject().buffer(), false);
+    }
 
-        int msgLen = JSON.length;
+    /**
+     * builds an unmasked server frame with the FIN bit set
+     * @param opcode
+     * @param payload
+     * @return the frame in a direct buffer, ready to be read
+     */
+    static ByteBuffer frame(int opcode, byte[] payload) {
+        return frame(opcode, ByteBuffer.wrap(payload), false);
+    }
 
-        byte[] header;
+    /**
+     * builds an unmasked server frame with the FIN bit set
+     * @param opcode
+     * @param payload
+     * @param compressed whether the payload was deflated, which sets RSV1
+     * @return the frame in a direct buffer, ready to be read
+     */
+    static ByteBuffer frame(int opcode, ByteBuffer payload, boolean compressed) {
+        int msgLen = payload.remaining();
+        int headerLen = msgLen < 126 ? 2 : (msgLen <= 0xFFFF ? 4 : 10);
 
+        ByteBuffer frame = ByteBuffer.allocateDirect(headerLen + msgLen);
+        frame.put((byte) (0x80 | (compressed ? 0x40 : 0) | opcode));
         if(msgLen < 126) {
-            header = new byte[]{(byte) 129, (byte) msgLen};
-        }else if (msgLen < Short.MAX_VALUE) {
-            header = new byte[]{(byte) 129, (byte) 126, (byte) ((msgLen >> 8) & (byte) 255), (byte) (msgLen & (byte) 255)};
+            frame.put((byte) msgLen);
+        }else if (msgLen <= 0xFFFF) {
+            frame.put((byte) 126);
+            frame.putShort((short) msgLen);
         }else {
-            header = new byte[10];
-            header[0] = (byte) 129;
-            header[1] = (byte) 127;
-            for (int i = 2, j = 56; i < 10; i++, j -= 8) {
-                header[i] = (byte) ((msgLen >> j) & (byte) 255);
-            }
+            frame.put((byte) 127);
+            frame.putLong(msgLen);
         }
+        frame.put(payload);
+        frame.flip();
+        return frame;
+    }
 
-        encoded = new byte[header.length + JSON.length];
+    /**
+     * sets the msg's id within its room, must happen before the msg is sent
+     * @param id
+     */
+    public void setId(long id) {
+        this.id = id;
+    }
 
-        int idx = 0;
+    /**
+     * gives the msg the JSON frame it was stored with, so it isn't encoded again
+     * @param frame the frame, ready to be read
+     */
+    void setFrame(ByteBuffer frame) {
+        frames[0] = frame.asReadOnlyBuffer();
+    }
 
-        for(int i = 0; i < header.length; i++, idx++) {
-            encoded[i] = header[i];
-        }
+    /**
+     * @return the msg's id within its room
+     */
+    public long getId() {
+        return id;
+    }
 
-        for(int i = 0; i < JSON.length; i++) {
-            encoded[idx++] = JSON[i];
-        }
+    /**
+     * sets when the msg was sent in millis, must happen before the msg is sent
+     * @param timestamp
+     */
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
     }
 
     /**
-     * @return JSON formatted msg as a string
+     * @return when the msg was sent in millis
      */
-    private String getJSON() {
-        return "{ \"user\" : \"" + userName + "\", \"message\" : \"" + msg + "\" }";
+    public long getTimestamp() {
+        return timestamp;
     }
 
     /**
@@ -153,15 +279,53 @@ public class WebSocketMsg {
     }
 
     /**
-     * @return returns the byte representation of the decoded msg of the dataframe
+     * @return whether the msg is a ping or pong rather than something a client said
      */
-    public byte[] getDecoded() {return decoded; }
+    public boolean isPingOrPong() {
+        return opcode == 9 || opcode == 10;
+    }
+
+    /**
+     * @return whether the msg is a ping the client expects a pong for
+     */
+    public boolean isPing() {
+        return opcode == 9;
+    }
+
+    /**
+     * @return the pong answering this ping, carrying the ping's payload
+     */
+    public ByteBuffer getPong() {
+        return frame(10, ping);
+    }
+
+    /**
+     * @return a read-only view of the JSON frame, every caller gets its own position but the bytes are shared
+     */
+    public ByteBuffer getFrame() {
+        return getFrame(false, false);
+    }
+
+    /**
+     * @param binary whether the client negotiated the binary subprotocol
+     * @param deflate whether the client negotiated permessage-deflate
+     * @return a read-only view of the frame in the client's format, encoded once and shared like the JSON frame
+     */
+    public ByteBuffer getFrame(boolean binary, boolean deflate) {
+        int format = format(binary, deflate);
+        if (frames[format] == null) {
+            frames[format] = encode(binary, deflate);
+        }
+        return frames[format].duplicate();
+    }
 
     /**
-     * @return the encoded and ready to sent dataframe
+     * @param binary
+     * @param deflate
+     * @return index of the format, below FORMATS
      */
-    public byte[] getEncoded() {
-        return encoded;
+    static int format(boolean binary, boolean deflate) {
+        return (binary ? 2 : 0) | (deflate ? 1 : 0);
     }
 
     /**
@@ -0,0 +1,69 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Bytes written to a chunked buffer the way the frame decoder writes them, unmasked as they're copied.
+ */
+public class ChunkedBufferTest {
+    private static final byte[] NO_MASK = new byte[4];
+
+    @Test
+    public void smallMsgTakesOneExactChunk() {
+        ChunkedBuffer buf = new ChunkedBuffer();
+        buf.write(ByteBuffer.wrap(new byte[10]), 10, NO_MASK, 0, 10);
+        assertEquals(1, buf.chunks());
+        assertEquals(10, buf.chunk(0).length);
+    }
+
+    @Test
+    public void tinyWritesShareChunks() {
+        ChunkedBuffer buf = new ChunkedBuffer();
+        for (int i = 0; i < 100000; i++) {
+            buf.write(ByteBuffer.wrap(new byte[] {'x'}), 1, NO_MASK, 0, 1);
+        }
+        assertEquals(100000, buf.size());
+        assertTrue(buf.chunks() <= 1 + 100000 / ChunkedBuffer.MIN_CHUNK + 1, "chunks: " + buf.chunks());
+    }
+
+    @Test
+    public void unmasksAcrossWrites() {
+        byte[] mask = {1, 2, 3, 4};
+        byte[] plain = "hello world".getBytes(StandardCharsets.US_ASCII);
+        byte[] masked = new byte[plain.length];
+        for (int i = 0; i < plain.length; i++) {
+            masked[i] = (byte) (plain[i] ^ mask[i & 3]);
+        }
+        ChunkedBuffer buf = new ChunkedBuffer();
+        ByteBuffer in = ByteBuffer.wrap(masked);
+        buf.write(in, 3, mask, 0, plain.length);
+        buf.write(in, plain.length - 3, mask, 3, plain.length - 3);
+        assertEquals("hello world", buf.string(0, buf.size()));
+    }
+
+    @Test
+    public void decodesStringsSpanningChunks() {
+        String text = "ab\u20AC\uD83D\uDE00";
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        ChunkedBuffer buf = new ChunkedBuffer();
+        //a chunk per byte at first, then larger ones, multibyte chars end up split between them
+        for (int i = 0; i < 3000; i++) {
+            for (byte b : bytes) {
+                buf.write(new byte[] {b}, 0, 1);
+            }
+        }
+        assertTrue(buf.chunks() > 1);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            expected.append(text);
+        }
+        assertEquals(expected.toString(), buf.string(0, buf.size()));
+        assertEquals(bytes[bytes.length - 1], buf.get(buf.size() - 1));
+        assertEquals(bytes[0], buf.get(0));
+    }
+}
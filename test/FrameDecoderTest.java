@@ -0,0 +1,177 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Frames as a client sends them, fed to the decoder whole, split over reads and as fragments of one msg.
+ */
+public class FrameDecoderTest {
+    private static final byte[] MASK = {0x12, 0x34, 0x56, 0x78};
+
+    @Test
+    public void decodesMaskedTextFrame() throws Exception {
+        WebSocketMsg msg = new FrameDecoder().next(ByteBuffer.wrap(frame(0x81, "alice hello world")));
+        assertEquals("alice", msg.getUserName());
+        assertEquals("hello world", msg.getMsg());
+    }
+
+    @Test
+    public void decodesFrameSplitOverReads() throws Exception {
+        byte[] bytes = frame(0x81, "alice hi");
+        FrameDecoder decoder = new FrameDecoder();
+        for (int i = 0; i < bytes.length - 1; i++) {
+            assertNull(decoder.next(ByteBuffer.wrap(bytes, i, 1)));
+        }
+        assertEquals("hi", decoder.next(ByteBuffer.wrap(bytes, bytes.length - 1, 1)).getMsg());
+    }
+
+    @Test
+    public void decodesSeveralFramesInOneRead() throws Exception {
+        ByteBuffer in = ByteBuffer.wrap(concat(frame(0x81, "alice one"), frame(0x81, "bob two")));
+        FrameDecoder decoder = new FrameDecoder();
+        assertEquals("one", decoder.next(in).getMsg());
+        assertEquals("two", decoder.next(in).getMsg());
+        assertNull(decoder.next(in));
+    }
+
+    @Test
+    public void decodesExtendedLengths() throws Exception {
+        FrameDecoder decoder = new FrameDecoder();
+        for (int length : new int[] {126, 65535, 70000}) {
+            String text = repeat('x', length);
+            assertEquals(text, decoder.next(ByteBuffer.wrap(frame(0x81, "alice " + text))).getMsg());
+        }
+    }
+
+    @Test
+    public void joinsFragmentsWithControlFramesBetween() throws Exception {
+        ByteBuffer in = ByteBuffer.wrap(concat(frame(0x01, "alice hel"), frame(0x89, "ping"),
+                frame(0x00, "lo "), frame(0x8A, ""), frame(0x80, "world")));
+        FrameDecoder decoder = new FrameDecoder();
+        assertTrue(decoder.next(in).isPing());
+        assertTrue(decoder.next(in).isPingOrPong());
+        WebSocketMsg msg = decoder.next(in);
+        assertEquals("alice", msg.getUserName());
+        assertEquals("hello world", msg.getMsg());
+        assertNull(decoder.next(in));
+    }
+
+    @Test
+    public void joinsManyTinyFragments() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(frame(0x01, "alice "));
+        for (int i = 0; i < 10000; i++) {
+            out.write(frame(0x00, "x"));
+        }
+        out.write(frame(0x80, ""));
+        WebSocketMsg msg = new FrameDecoder().next(ByteBuffer.wrap(out.toByteArray()));
+        assertEquals(repeat('x', 10000), msg.getMsg());
+    }
+
+    @Test
+    public void rejectsMsgOverLimitBeforeItsPayload() {
+        //only the header, the announced payload never arrives
+        byte[] header = {(byte) 0x81, (byte) (0x80 | 126), 0x03, (byte) 0xE8};
+        assertThrows(ProtocolException.class, () -> new FrameDecoder(100).next(ByteBuffer.wrap(header)));
+    }
+
+    @Test
+    public void rejectsFragmentsAddingUpOverLimit() throws Exception {
+        FrameDecoder decoder = new FrameDecoder(100);
+        assertNull(decoder.next(ByteBuffer.wrap(frame(0x01, "alice " + repeat('x', 54)))));
+        ByteBuffer rest = ByteBuffer.wrap(frame(0x80, repeat('x', 60)));
+        assertThrows(ProtocolException.class, () -> decoder.next(rest));
+    }
+
+    @Test
+    public void acceptsMsgOfExactlyTheLimit() throws Exception {
+        FrameDecoder decoder = new FrameDecoder(100);
+        decoder.next(ByteBuffer.wrap(frame(0x01, "alice " + repeat('x', 44))));
+        assertEquals(94, decoder.next(ByteBuffer.wrap(frame(0x80, repeat('x', 50)))).getMsg().length());
+    }
+
+    @Test
+    public void rejectsContinuationWithoutMsg() {
+        assertThrows(ProtocolException.class, () -> new FrameDecoder().next(ByteBuffer.wrap(frame(0x80, "oops"))));
+    }
+
+    @Test
+    public void rejectsNewMsgBeforeLastEnded() throws Exception {
+        FrameDecoder decoder = new FrameDecoder();
+        decoder.next(ByteBuffer.wrap(frame(0x01, "alice a")));
+        assertThrows(ProtocolException.class, () -> decoder.next(ByteBuffer.wrap(frame(0x81, "bob b"))));
+    }
+
+    @Test
+    public void rejectsFragmentedControlFrame() {
+        assertThrows(ProtocolException.class, () -> new FrameDecoder().next(ByteBuffer.wrap(frame(0x09, "p"))));
+    }
+
+    @Test
+    public void rejectsLargeControlFrame() {
+        byte[] ping = frame(0x89, repeat('p', 126));
+        assertThrows(ProtocolException.class, () -> new FrameDecoder().next(ByteBuffer.wrap(ping)));
+    }
+
+    @Test
+    public void rejectsUnmaskedFrame() {
+        byte[] unmasked = {(byte) 0x81, 2, 'h', 'i'};
+        assertThrows(ProtocolException.class, () -> new FrameDecoder().next(ByteBuffer.wrap(unmasked)));
+    }
+
+    @Test
+    public void rejectsCompressedFrameWithoutDeflate() {
+        assertThrows(ProtocolException.class, () -> new FrameDecoder().next(ByteBuffer.wrap(frame(0xC1, "x"))));
+    }
+
+    /**
+     * @param first the header's first byte, FIN, reserved bits and opcode
+     * @param text payload
+     * @return the frame masked the way a client sends it
+     */
+    static byte[] frame(int first, String text) {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(first);
+        if (payload.length < 126) {
+            out.write(0x80 | payload.length);
+        } else if (payload.length < 65536) {
+            out.write(0x80 | 126);
+            out.write(payload.length >> 8);
+            out.write(payload.length);
+        } else {
+            out.write(0x80 | 127);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out.write((int) ((long) payload.length >> shift));
+            }
+        }
+        out.write(MASK, 0, 4);
+        for (int i = 0; i < payload.length; i++) {
+            out.write(payload[i] ^ MASK[i & 3]);
+        }
+        return out.toByteArray();
+    }
+
+    static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    static String repeat(char c, int n) {
+        StringBuilder s = new StringBuilder(n);
+        for (int i = 0; i < n; i++) {
+            s.append(c);
+        }
+        return s.toString();
+    }
+}
@@ -0,0 +1,77 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * What the JSON writer produces for msgs whose text would break out of a string if it wasn't escaped.
+ */
+public class JsonWriterTest {
+    @Test
+    public void escapesQuotesAndBackslashes() {
+        assertEquals("{\"m\":\"say \\\"hi\\\" \\\\o/\"}", json("say \"hi\" \\o/"));
+    }
+
+    @Test
+    public void escapesControlChars() {
+        assertEquals("{\"m\":\"a\\nb\\rc\\td\\be\\ff\\u0000g\\u001fh\"}", json("a\nb\rc\td\be\ff\u0000g\u001fh"));
+    }
+
+    @Test
+    public void escapesLineAndParagraphSeparators() {
+        assertEquals("{\"m\":\"a\\u2028b\\u2029c\"}", json("a\u2028b\u2029c"));
+    }
+
+    @Test
+    public void encodesMultibyteCharsAsUtf8() {
+        String text = "\u00E9 \u20AC \uD83D\uDE00 \u4E2D";
+        assertEquals("{\"m\":\"" + text + "\"}", json(text));
+    }
+
+    @Test
+    public void replacesLoneSurrogates() {
+        assertEquals("{\"m\":\"a\uFFFDb\uFFFD\"}", json("a\uD800b\uDC00"));
+    }
+
+    @Test
+    public void writesNumbersAndSeveralFields() {
+        String out = text(JsonWriter.get().beginObject().field("id", 42).field("time", -1).field("user", "alice")
+                .endObject());
+        assertEquals("{\"id\":42,\"time\":-1,\"user\":\"alice\"}", out);
+    }
+
+    @Test
+    public void writesArraysOfStringsAndObjects() {
+        String out = text(JsonWriter.get().beginObject()
+                .beginArray("names").value("a\"").value("b").endArray()
+                .beginArray("results").beginObject().field("id", 1).endObject().beginObject().field("id", 2)
+                .endObject().endArray()
+                .beginArray("empty").endArray()
+                .endObject());
+        assertEquals("{\"names\":[\"a\\\"\",\"b\"],\"results\":[{\"id\":1},{\"id\":2}],\"empty\":[]}", out);
+    }
+
+    @Test
+    public void growsForLongStrings() {
+        String text = FrameDecoderTest.repeat('\n', 100000);
+        String out = json(text);
+        assertEquals(100000 * 2 + "{\"m\":\"\"}".length(), out.length());
+        //the next msg on the thread starts from an empty writer
+        assertEquals("{\"m\":\"x\"}", json("x"));
+    }
+
+    private static String json(String value) {
+        return text(JsonWriter.get().beginObject().field("m", value).endObject());
+    }
+
+    private static String text(JsonWriter writer) {
+        ByteBuffer buf = writer.buffer();
+        byte[] bytes = new byte[buf.remaining()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
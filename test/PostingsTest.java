@@ -0,0 +1,80 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Ids put in a postings list and read back from its varint encoding.
+ */
+public class PostingsTest {
+    @Test
+    public void roundTripsIdsOfEveryEncodedLength() {
+        //distances taking one to five bytes
+        int[] ids = {1, 2, 129, 16513, 2113665, 270549121, Integer.MAX_VALUE};
+        Postings postings = new Postings();
+        for (int id : ids) {
+            postings.add(id);
+        }
+        assertEquals(ids.length, postings.size());
+        assertEquals(Integer.MAX_VALUE, postings.last());
+        assertArrayEquals(ids, postings.toArray());
+    }
+
+    @Test
+    public void ignoresIdsThatAreNotLarger() {
+        Postings postings = new Postings();
+        postings.add(5);
+        postings.add(5);
+        postings.add(3);
+        postings.add(8);
+        assertArrayEquals(new int[] {5, 8}, postings.toArray());
+    }
+
+    @Test
+    public void growsPastItsFirstArray() {
+        Postings postings = new Postings();
+        int[] ids = new int[10000];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = i * 300 + 1;
+            postings.add(ids[i]);
+        }
+        assertArrayEquals(ids, postings.toArray());
+    }
+
+    @Test
+    public void writesListsOneAfterAnother() {
+        Postings first = new Postings();
+        first.add(3);
+        first.add(7);
+        Postings second = new Postings();
+        second.add(9);
+        second.add(200);
+        second.add(100000);
+
+        ByteBuffer out = ByteBuffer.allocate(64);
+        first.writeAfter(out, 0);
+        assertEquals(first.lengthAfter(0), out.position());
+        second.writeAfter(out, first.last());
+        assertEquals(first.lengthAfter(0) + second.lengthAfter(first.last()), out.position());
+
+        out.flip();
+        int[] ids = new int[5];
+        assertEquals(100000, Postings.decode(out, 0, ids, 0, 5));
+        assertArrayEquals(new int[] {3, 7, 9, 200, 100000}, ids);
+        assertFalse(out.hasRemaining());
+    }
+
+    @Test
+    public void emptyListWritesNothing() {
+        Postings postings = new Postings();
+        ByteBuffer out = ByteBuffer.allocate(8);
+        postings.writeAfter(out, 42);
+        assertEquals(0, out.position());
+        assertEquals(0, postings.lengthAfter(42));
+        assertEquals(0, postings.size());
+        assertEquals(0, postings.toArray().length);
+    }
+}
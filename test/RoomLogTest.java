@@ -0,0 +1,192 @@
+package server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * A room's log written, closed and opened again, with the end of its segment torn the way a crash leaves it.
+ */
+public class RoomLogTest {
+    private File dir;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("roomlog").toFile();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        delete(dir);
+    }
+
+    @Test
+    public void readsBackWhatWasAppended() throws IOException {
+        RoomLog log = open();
+        append(log, 1, 20);
+        assertIds(log.latest(5), 16, 20);
+        assertIds(log.before(10, 3), 7, 9);
+        assertEquals("msg 12", log.before(13, 1).get(0).getMsg());
+        log.close();
+
+        RoomLog reopened = open();
+        assertIds(reopened.latest(100), 1, 20);
+        reopened.close();
+    }
+
+    @Test
+    public void dropsTornRecordAtTheEnd() throws IOException {
+        RoomLog log = open();
+        append(log, 1, 10);
+        log.close();
+        //cut into the last record
+        truncate(segment(), -5);
+
+        RoomLog reopened = open();
+        assertIds(reopened.latest(100), 1, 9);
+        //appending goes on where the valid records end
+        append(reopened, 10, 11);
+        assertIds(reopened.latest(100), 1, 11);
+        reopened.close();
+
+        RoomLog again = open();
+        assertIds(again.latest(100), 1, 11);
+        again.close();
+    }
+
+    @Test
+    public void dropsRecordWhoseCrcDoesNotMatch() throws IOException {
+        RoomLog log = open();
+        append(log, 1, 10);
+        log.close();
+        //flip a byte of the last record's text
+        File segment = segment();
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.seek(raf.length() - 1);
+            int b = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(b ^ 0xFF);
+        }
+
+        RoomLog reopened = open();
+        assertIds(reopened.latest(100), 1, 9);
+        reopened.close();
+    }
+
+    @Test
+    public void ignoresGarbageAfterTheRecords() throws IOException {
+        RoomLog log = open();
+        append(log, 1, 5);
+        log.close();
+        //an unused end of a segment that wasn't closed, or half a header
+        truncate(segment(), 6);
+
+        RoomLog reopened = open();
+        assertIds(reopened.latest(100), 1, 5);
+        reopened.close();
+    }
+
+    @Test
+    public void retriesSegmentItCouldNotDelete() throws IOException {
+        //segments of about a dozen msgs, the oldest sealed one goes once there are two
+        RoomLog log = new RoomLog(dir, 1024, 1500, Long.MAX_VALUE);
+        long id = appendUntilSegments(log, 1, 2);
+        File first = segments()[0];
+        //a directory that isn't empty can't be deleted in place of the segment's index
+        File index = new File(dir, first.getName().replace(".log", ".idx"));
+        assertTrue(index.delete() && index.mkdir() && new File(index, "x").createNewFile());
+
+        id = appendUntilSegments(log, id, 3);
+        assertTrue(first.exists());
+
+        //the next roll tries again
+        delete(index);
+        File last = segments()[2];
+        for (long end = id + 1000; segments()[segments().length - 1].equals(last) && id < end; id++) {
+            append(log, id, id);
+        }
+        assertFalse(first.exists());
+        assertIds(log.latest(5), id - 5, id - 1);
+        log.close();
+    }
+
+    private RoomLog open() {
+        return new RoomLog(dir, 1024 * 1024, Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    private static void append(RoomLog log, long from, long to) throws IOException {
+        for (long id = from; id <= to; id++) {
+            WebSocketMsg msg = new WebSocketMsg("alice", "msg " + id);
+            msg.setId(id);
+            msg.setTimestamp(1000 + id);
+            log.append(msg);
+        }
+    }
+
+    /**
+     * appends msgs from an id on until the log has as many segment files, or a thousand msgs if it never does
+     * @return id of the next msg
+     */
+    private long appendUntilSegments(RoomLog log, long id, int count) throws IOException {
+        for (long end = id + 1000; segments().length < count && id < end; id++) {
+            append(log, id, id);
+        }
+        return id;
+    }
+
+    /**
+     * @return the log's segment files, oldest first
+     */
+    private File[] segments() {
+        File[] segments = dir.listFiles((d, name) -> name.endsWith(".log"));
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    private static void assertIds(List<WebSocketMsg> msgs, long from, long to) {
+        assertEquals(to - from + 1, msgs.size());
+        for (int i = 0; i < msgs.size(); i++) {
+            WebSocketMsg msg = msgs.get(i);
+            assertEquals(from + i, msg.getId());
+            assertEquals(1000 + from + i, msg.getTimestamp());
+            assertEquals("msg " + (from + i), msg.getMsg());
+        }
+    }
+
+    /**
+     * @return the log's only segment file
+     */
+    private File segment() {
+        File[] segments = dir.listFiles((d, name) -> name.endsWith(".log"));
+        assertEquals(1, segments.length);
+        return segments[0];
+    }
+
+    /**
+     * @param by bytes cut off when negative, zero bytes added when positive
+     */
+    private static void truncate(File file, long by) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() + by);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
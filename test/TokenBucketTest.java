@@ -0,0 +1,92 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tokens taken from a bucket at made up times, starting from now since a new bucket is full as of its creation.
+ */
+public class TokenBucketTest {
+    //10 a second, a token every 100ms
+    private static final long INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+    @Test
+    public void letsBurstThroughThenWaits() {
+        TokenBucket bucket = new TokenBucket(10, 3);
+        long now = System.nanoTime();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, bucket.take(now));
+        }
+        assertEquals(INTERVAL, bucket.take(now));
+    }
+
+    @Test
+    public void refusingTakesNothing() {
+        TokenBucket bucket = new TokenBucket(10, 1);
+        long now = System.nanoTime();
+        assertEquals(0, bucket.take(now));
+        for (int i = 0; i < 5; i++) {
+            assertEquals(INTERVAL, bucket.take(now));
+        }
+        assertEquals(INTERVAL / 2, bucket.take(now + INTERVAL / 2));
+    }
+
+    @Test
+    public void refillsAtTheRate() {
+        TokenBucket bucket = new TokenBucket(10, 2);
+        long now = System.nanoTime();
+        bucket.take(now);
+        bucket.take(now);
+        assertTrue(bucket.take(now) > 0);
+
+        now += INTERVAL;
+        assertEquals(0, bucket.take(now));
+        assertTrue(bucket.take(now) > 0);
+
+        //a long pause refills no more than the burst
+        now += 100 * INTERVAL;
+        assertEquals(0, bucket.take(now));
+        assertEquals(0, bucket.take(now));
+        assertTrue(bucket.take(now) > 0);
+    }
+
+    @Test
+    public void isFullOnceEveryTokenIsBack() {
+        TokenBucket bucket = new TokenBucket(10, 3);
+        long now = System.nanoTime();
+        assertTrue(bucket.isFull(now));
+        bucket.take(now);
+        bucket.take(now);
+        assertFalse(bucket.isFull(now));
+        assertFalse(bucket.isFull(now + INTERVAL));
+        assertTrue(bucket.isFull(now + 2 * INTERVAL));
+    }
+
+    @Test
+    public void sharedBetweenThreads() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(1, 1000);
+        long now = System.nanoTime();
+        int[] taken = new int[4];
+        Thread[] threads = new Thread[taken.length];
+        for (int t = 0; t < threads.length; t++) {
+            int index = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    if (bucket.take(now) == 0) {
+                        taken[index]++;
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        int total = 0;
+        for (int t = 0; t < threads.length; t++) {
+            threads[t].join();
+            total += taken[t];
+        }
+        assertEquals(1000, total);
+    }
+}